@@ -0,0 +1,208 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.mpobjects.munin.activemq.jmx.AmqJmxQuery;
+
+/**
+ * Resident collector. Keeps a single {@link AmqJmxQuery} (and thus the JMX connection and naming scheme) alive and
+ * serves plugin requests received on a loopback socket. While idle the connection is verified every KEEPALIVE seconds,
+ * and re-established when it was lost. On a new connection the daemon first sends <code>settings NAME ...</code>,
+ * the settings it needs from the plugin, so the plugin does not need its own copy of {@link #SETTINGS}. A request is a
+ * line containing the same arguments as the command line, followed by a <code>NAME=value</code> line for every
+ * setting of the plugin which is set and an empty line. The daemon only serves plugins with the same
+ * {@link #SETTINGS} as its own, otherwise the response is <code>rejected NAME</code> and the plugin has to run by
+ * itself. MUNIN_CAP_DIRTYCONFIG is applied per request. The response to a served request is
+ * <code>status N</code>, with N the exit code, followed by the plugin output after which the connection is closed.
+ */
+public class Daemon {
+	/**
+	 * The settings which affect the result of a request, they are read once when the daemon starts.
+	 */
+	protected static final String[] SETTINGS = { "JMX_HOST", "JMX_PORT", "JMX_USER", "JMX_PASS", "JMX_LOCAL", "JOLOKIA_URL",
+			"BROKER_NAME", "BROKERS", "BROKER_THREADS", "CONNECT_TIMEOUT", "CALL_TIMEOUT", "FETCH_THREADS", "FETCH_CONNECTIONS",
+			"FETCH_TIMEOUT", "DISCOVERY_TTL", "DISCOVERY_MAX_AGE", "MUNIN_PLUGSTATE", "SAMPLE_INTERVAL", "TOP_N", "TOP_ATTRIBUTE" };
+
+	protected String host = "127.0.0.1";
+	protected int port = 4950;
+
+	/**
+	 * Read timeout for a client request, in milliseconds.
+	 */
+	protected int clientTimeout = 10000;
+
+	protected Output output;
+	protected AmqJmxQuery query;
+
+	public Daemon(Output aOutput) {
+		super();
+		if (aOutput == null) {
+			throw new NullPointerException("Output cannot be null");
+		}
+		output = aOutput;
+		init();
+	}
+
+	/**
+	 * @return the host
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * @return the port
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	protected void init() {
+		Map<String, String> env = System.getenv();
+		if (env.get("DAEMON_HOST") != null) {
+			host = env.get("DAEMON_HOST");
+		} else {
+			host = System.getProperty("DAEMON_HOST", host);
+		}
+		if (env.get("DAEMON_PORT") != null) {
+			port = Integer.parseInt(env.get("DAEMON_PORT"));
+		} else {
+			port = Integer.getInteger("DAEMON_PORT", port);
+		}
+	}
+
+	/**
+	 * Accept and handle requests until the process is terminated. Requests are handled one at a time, munin-node
+	 * calls the plugins sequentially anyway and this keeps the load on the broker predictable.
+	 *
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(host));
+		output.err.println(String.format("Listening on %s:%d", host, port));
+		query = Main.getQuery(null, output, null);
+		if (query.getKeepAlive() > 0) {
+			server.setSoTimeout(query.getKeepAlive() * 1000);
+		}
+		try {
+			while (!server.isClosed()) {
+				Socket client;
+				try {
+					client = server.accept();
+				} catch (SocketTimeoutException e) {
+					// idle, verify the connection or reconnect so that the next request does not have to
+					query.connect();
+					continue;
+				}
+				try {
+					handle(client);
+				} catch (IOException e) {
+					e.printStackTrace(output.err);
+				} finally {
+					try {
+						client.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+		} finally {
+			query.close();
+			server.close();
+		}
+	}
+
+	/**
+	 * Handle a single request
+	 *
+	 * @param aClient
+	 * @throws IOException
+	 */
+	protected void handle(Socket aClient) throws IOException {
+		aClient.setSoTimeout(clientTimeout);
+		OutputStream out = aClient.getOutputStream();
+		StringBuilder names = new StringBuilder("settings");
+		for (String name : SETTINGS) {
+			names.append(' ').append(name);
+		}
+		names.append(" MUNIN_CAP_DIRTYCONFIG\n");
+		out.write(names.toString().getBytes("UTF-8"));
+		out.flush();
+		BufferedReader in = new BufferedReader(new InputStreamReader(aClient.getInputStream()));
+		String line = in.readLine();
+		if (line == null || line.trim().length() == 0) {
+			return;
+		}
+		Map<String, String> settings = new HashMap<String, String>();
+		String setting;
+		while ((setting = in.readLine()) != null && setting.length() > 0) {
+			int idx = setting.indexOf('=');
+			if (idx > 0) {
+				settings.put(setting.substring(0, idx), setting.substring(idx + 1));
+			}
+		}
+		String mismatch = getMismatch(settings);
+		if (mismatch != null) {
+			output.err.println(String.format("Rejected a request with a different %s: %s", mismatch, line));
+			out.write(("rejected " + mismatch + "\n").getBytes("UTF-8"));
+			out.flush();
+			return;
+		}
+		// the status goes first, so the output is collected before it is sent
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		Output requestOutput = new Output(new FieldWriter(buffer), output.err);
+		query.setDirtyConfig("1".equals(settings.get("MUNIN_CAP_DIRTYCONFIG")));
+		QueryAction action = Main.execute(query, requestOutput, line.trim().split("\\s+"));
+		requestOutput.flush();
+		int exitCode = action == QueryAction.AUTOCONF ? 0 : requestOutput.getExitCode();
+		out.write(("status " + exitCode + "\n").getBytes("UTF-8"));
+		buffer.writeTo(out);
+		out.flush();
+	}
+
+	/**
+	 * @param aSettings
+	 *            the settings of the plugin
+	 * @return The first of the {@link #SETTINGS} which differs from the daemon, or null when they are the same
+	 */
+	protected String getMismatch(Map<String, String> aSettings) {
+		Map<String, String> env = System.getenv();
+		for (String name : SETTINGS) {
+			String value = env.get(name);
+			if (value == null) {
+				value = System.getProperty(name);
+			}
+			String requested = aSettings.get(name);
+			if (value == null ? requested != null : !value.equals(requested)) {
+				return name;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq;
+
+/**
+ * A point in time before which work has to be finished.
+ */
+public class Deadline {
+	/**
+	 * A deadline which never expires
+	 */
+	public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+	/**
+	 * The deadline in {@link System#nanoTime()}, or Long.MAX_VALUE when there is none.
+	 */
+	protected long end;
+
+	protected Deadline(long aEnd) {
+		end = aEnd;
+	}
+
+	/**
+	 * @param aMillis
+	 * @return A deadline the given number of milliseconds from now, or {@link #NONE} when it is not positive.
+	 */
+	public static Deadline in(long aMillis) {
+		if (aMillis <= 0) {
+			return NONE;
+		}
+		return new Deadline(System.nanoTime() + aMillis * 1000000L);
+	}
+
+	/**
+	 * @return True when the deadline has passed
+	 */
+	public boolean isExpired() {
+		return end != Long.MAX_VALUE && System.nanoTime() - end >= 0;
+	}
+
+	/**
+	 * @return The remaining milliseconds, 0 when the deadline has passed, or Long.MAX_VALUE when there is no deadline.
+	 */
+	public long remaining() {
+		if (end == Long.MAX_VALUE) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0, (end - System.nanoTime()) / 1000000L);
+	}
+
+	/**
+	 * @param aMillis
+	 * @return The given timeout limited to the remaining time. A timeout which is not positive means no timeout.
+	 */
+	public long limit(long aMillis) {
+		if (aMillis <= 0) {
+			return remaining();
+		}
+		return Math.min(aMillis, remaining());
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Buffered sink for plugin output. Text and numbers are written into a reusable byte buffer, which is only written to
+ * the underlying stream when it is full or when it is flushed. ASCII text and integral numbers are written without
+ * creating intermediate strings. Errors writing to the underlying stream are remembered, like {@link java.io.PrintStream}
+ * does, instead of thrown from every print call.
+ */
+public class FieldWriter extends OutputStream {
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	protected static final byte[] DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9' };
+
+	protected static final byte[] MIN_LONG = "-9223372036854775808".getBytes();
+
+	protected OutputStream out;
+	protected byte[] buffer;
+	protected int count;
+	protected Charset charset = Charset.defaultCharset();
+	protected boolean error;
+
+	/**
+	 * @param aOut
+	 */
+	public FieldWriter(OutputStream aOut) {
+		this(aOut, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param aOut
+	 * @param aSize
+	 *            the size of the buffer
+	 */
+	public FieldWriter(OutputStream aOut, int aSize) {
+		super();
+		if (aOut == null) {
+			throw new NullPointerException("Out cannot be null");
+		}
+		out = aOut;
+		buffer = new byte[Math.max(aSize, 32)];
+	}
+
+	/**
+	 * @return True when writing to the underlying stream failed
+	 */
+	public boolean checkError() {
+		return error;
+	}
+
+	/**
+	 * Reset the buffer, discarding any content which has not been flushed
+	 */
+	public void reset() {
+		count = 0;
+	}
+
+	/**
+	 * @return The number of bytes in the buffer
+	 */
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public void write(int b) {
+		if (count == buffer.length) {
+			flushBuffer();
+		}
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		if (len >= buffer.length) {
+			flushBuffer();
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				error = true;
+			}
+			return;
+		}
+		if (len > buffer.length - count) {
+			flushBuffer();
+		}
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	@Override
+	public void flush() {
+		flushBuffer();
+		try {
+			out.flush();
+		} catch (IOException e) {
+			error = true;
+		}
+	}
+
+	@Override
+	public void close() {
+		flush();
+		try {
+			out.close();
+		} catch (IOException e) {
+			error = true;
+		}
+	}
+
+	/**
+	 * @param aStr
+	 * @return this
+	 */
+	public FieldWriter print(String aStr) {
+		if (aStr == null) {
+			aStr = "null";
+		}
+		int len = aStr.length();
+		for (int i = 0; i < len; ++i) {
+			char c = aStr.charAt(i);
+			if (c >= 0x80) {
+				// not plain ascii, let the charset deal with the rest
+				byte[] bytes = aStr.substring(i).getBytes(charset);
+				write(bytes, 0, bytes.length);
+				return this;
+			}
+			if (count == buffer.length) {
+				flushBuffer();
+			}
+			buffer[count++] = (byte) c;
+		}
+		return this;
+	}
+
+	/**
+	 * @param aChar
+	 * @return this
+	 */
+	public FieldWriter print(char aChar) {
+		if (aChar >= 0x80) {
+			return print(String.valueOf(aChar));
+		}
+		write(aChar);
+		return this;
+	}
+
+	/**
+	 * Write the decimal representation of a number, without creating a string
+	 *
+	 * @param aValue
+	 * @return this
+	 */
+	public FieldWriter print(long aValue) {
+		if (aValue == Long.MIN_VALUE) {
+			write(MIN_LONG, 0, MIN_LONG.length);
+			return this;
+		}
+		if (buffer.length - count < 20) {
+			flushBuffer();
+		}
+		if (aValue < 0) {
+			buffer[count++] = '-';
+			aValue = -aValue;
+		}
+		int digits = 1;
+		for (long v = aValue; v >= 10; v /= 10) {
+			++digits;
+		}
+		int pos = count + digits;
+		count = pos;
+		do {
+			buffer[--pos] = DIGITS[(int) (aValue % 10)];
+			aValue /= 10;
+		} while (aValue != 0);
+		return this;
+	}
+
+	/**
+	 * Write a number. Integral values are written without creating a string.
+	 *
+	 * @param aValue
+	 * @return this
+	 */
+	public FieldWriter print(Number aValue) {
+		if (aValue instanceof Long || aValue instanceof Integer || aValue instanceof Short || aValue instanceof Byte) {
+			return print(aValue.longValue());
+		}
+		double d = aValue.doubleValue();
+		if (d == Math.rint(d) && Math.abs(d) < 1e15) {
+			return print((long) d);
+		}
+		return print(aValue.toString());
+	}
+
+	/**
+	 * @return this
+	 */
+	public FieldWriter println() {
+		write('\n');
+		return this;
+	}
+
+	/**
+	 * @param aStr
+	 * @return this
+	 */
+	public FieldWriter println(String aStr) {
+		return print(aStr).println();
+	}
+
+	/**
+	 * Write the buffer to the underlying stream
+	 */
+	protected void flushBuffer() {
+		if (count == 0) {
+			return;
+		}
+		try {
+			out.write(buffer, 0, count);
+		} catch (IOException e) {
+			error = true;
+		}
+		count = 0;
+	}
+}
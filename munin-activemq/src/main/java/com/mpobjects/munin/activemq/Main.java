@@ -22,6 +22,7 @@ import java.util.EnumSet;
 import java.util.List;
 
 import com.mpobjects.munin.activemq.jmx.AmqJmxQuery;
+import com.mpobjects.munin.activemq.jmx.MultiBrokerQuery;
 
 /**
  * Entry point for the activemq plugin
@@ -32,11 +33,30 @@ public class Main {
 	 */
 	public static void main(String[] args) {
 		Output output = new Output();
+		QueryAction action = execute(null, output, args);
+		output.flush();
+		if (action == QueryAction.AUTOCONF) {
+			// always exit 0 with autoconf
+		} else {
+			System.exit(output.getExitCode());
+		}
+	}
+
+	/**
+	 * Execute a single plugin request.
+	 * 
+	 * @param aQuery
+	 *            The query to reuse, when null a new query is created for the request.
+	 * @param output
+	 * @param args
+	 * @return The action that was executed, or null when it could not be determined.
+	 */
+	public static QueryAction execute(AmqJmxQuery aQuery, Output output, String[] args) {
 		QueryAction action = null;
 		try {
 			if (args.length < 1) {
 				printUsage(output, args);
-				return;
+				return action;
 			}
 			action = QueryAction.parse(args[0]);
 
@@ -49,21 +69,52 @@ public class Main {
 				for (QueryMode aMode : EnumSet.allOf(QueryMode.class)) {
 					output.out.println(aMode.toString().toLowerCase());
 				}
-				return;
+				return action;
+			} else if (action == QueryAction.DAEMON) {
+				if (aQuery != null) {
+					throw new IllegalStateException("Already running as daemon");
+				}
+				Daemon daemon = new Daemon(output);
+				daemon.run();
+			} else if (action == QueryAction.METRICS) {
+				if (aQuery != null) {
+					throw new IllegalStateException("Metrics can not be served by the daemon");
+				}
+				// there is no query mode, all arguments are destinations
+				MetricsServer server = new MetricsServer(output, Arrays.asList(args).subList(1, args.length));
+				server.run();
+			} else if (action == QueryAction.PUSH) {
+				if (aQuery != null) {
+					throw new IllegalStateException("Values can not be pushed by the daemon");
+				}
+				Pusher pusher = new Pusher(output, Arrays.asList(args).subList(1, args.length));
+				pusher.run();
+			} else if (action == QueryAction.SAMPLE) {
+				if (aQuery != null) {
+					throw new IllegalStateException("Samples can not be collected by the daemon");
+				}
+				if (args.length < 2) {
+					printUsage(output, args);
+					return action;
+				}
+				Sampler sampler = new Sampler(output, QueryMode.parse(args[1]), dests);
+				sampler.run();
 			} else if (action == QueryAction.AUTOCONF) {
-				AmqJmxQuery query = new AmqJmxQuery(output);
+				AmqJmxQuery query = getQuery(aQuery, output, null);
 				query.printAutoConf(dests);
 			} else if (action == QueryAction.LIST) {
-				AmqJmxQuery query = new AmqJmxQuery(output);
+				AmqJmxQuery query = getQuery(aQuery, output, null);
 				query.printDestinations();
 			} else {
 				if (args.length <= 2) {
 					printUsage(output, args);
-					return;
+					return action;
 				}
 				QueryMode mode = QueryMode.parse(args[1]);
-
-				AmqJmxQuery query = new AmqJmxQuery(output, mode);
+				AmqJmxQuery query = getQuery(aQuery, output, mode);
+				if (action == QueryAction.FETCH && Sampler.printSpooled(output, query, mode, dests)) {
+					return action;
+				}
 				switch (action) {
 					case FETCH:
 						query.printValues(dests);
@@ -80,21 +131,39 @@ public class Main {
 			}
 			e.printStackTrace(output.err);
 			output.setExitCode(1);
-		} finally {
-			if (action == QueryAction.AUTOCONF) {
-				// always exit 0 with autoconf
-			} else {
-				System.exit(output.getExitCode());
+		}
+		return action;
+	}
+
+	/**
+	 * Prepare the query to use for a request.
+	 * 
+	 * @param aQuery
+	 *            An existing query, or null to create a new one.
+	 * @param output
+	 * @param mode
+	 * @return
+	 */
+	protected static AmqJmxQuery getQuery(AmqJmxQuery aQuery, Output output, QueryMode mode) {
+		if (aQuery == null) {
+			if (MultiBrokerQuery.isConfigured()) {
+				return new MultiBrokerQuery(output, mode);
 			}
+			return new AmqJmxQuery(output, mode);
 		}
+		aQuery.setOutput(output);
+		aQuery.setMode(mode);
+		return aQuery;
 	}
 
 	/**
 	 * @param output
 	 */
 	protected static void printUsage(Output output, String[] args) {
-		output.err.println("Usage: java -jar munin-activemq.jar <values|config|autoconf|suggest|list> [<size|subscribers|traffic>] [destination ...]");
+		output.err.println("Usage: java -jar munin-activemq.jar <fetch|config|autoconf|suggest|list|daemon|metrics|push|sample> [<size|subscribers|traffic|multigraph|rates|resources|latency|top>] [destination ...]");
 		output.err.println("Destination: prefixed with + uses regex matching, can be inverted with +! prefix. e.g. +!queue:internal\\..*");
+		output.err.println("Destination: prefixed with ~ uses JMX object name patterns (* and ?) matched by the broker. e.g. ~queue:orders.*");
+		output.err.println("Destination: prefixed with = uses regex matching and sums the destinations per value of the first capturing group. e.g. =queue:([^.]+)\\..*");
 		output.err.println("Received arguments: " + Arrays.toString(args));
 		output.setExitCode(1);
 	}
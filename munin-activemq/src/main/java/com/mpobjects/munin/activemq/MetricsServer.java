@@ -0,0 +1,193 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.mpobjects.munin.activemq.jmx.AmqJmxQuery;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the values of all graphs in the Prometheus text format on <code>/metrics</code>. The values are collected
+ * every METRICS_INTERVAL seconds in the background, scrapes are answered from the last snapshot, so the number of
+ * scrapers does not affect the load on the broker.
+ */
+public class MetricsServer {
+	protected static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	protected String host = "0.0.0.0";
+	protected int port = 9405;
+
+	/**
+	 * Seconds between two snapshots
+	 */
+	protected int interval = 30;
+
+	protected Output output;
+	protected AmqJmxQuery query;
+	protected List<String> destinations;
+
+	/**
+	 * The last collected snapshot, null until the first collection finished
+	 */
+	protected volatile byte[] snapshot;
+
+	/**
+	 * @param aOutput
+	 * @param aDestinations
+	 *            the destinations to collect, when empty DESTINATIONS is used, or else all queues and topics.
+	 */
+	public MetricsServer(Output aOutput, List<String> aDestinations) {
+		super();
+		if (aOutput == null) {
+			throw new NullPointerException("Output cannot be null");
+		}
+		output = aOutput;
+		destinations = new ArrayList<String>(aDestinations);
+		init();
+	}
+
+	protected void init() {
+		Map<String, String> env = System.getenv();
+		if (env.get("METRICS_HOST") != null) {
+			host = env.get("METRICS_HOST");
+		} else {
+			host = System.getProperty("METRICS_HOST", host);
+		}
+		if (env.get("METRICS_PORT") != null) {
+			port = Integer.parseInt(env.get("METRICS_PORT"));
+		} else {
+			port = Integer.getInteger("METRICS_PORT", port);
+		}
+		if (env.get("METRICS_INTERVAL") != null) {
+			interval = Integer.parseInt(env.get("METRICS_INTERVAL"));
+		} else {
+			interval = Integer.getInteger("METRICS_INTERVAL", interval);
+		}
+		if (destinations.isEmpty()) {
+			String dests = env.get("DESTINATIONS");
+			if (dests == null) {
+				dests = System.getProperty("DESTINATIONS", "");
+			}
+			for (String dest : dests.trim().split("\\s+")) {
+				if (dest.length() > 0) {
+					destinations.add(dest);
+				}
+			}
+		}
+		if (destinations.isEmpty()) {
+			destinations.addAll(Arrays.asList("+queue:.*", "+topic:.*"));
+		}
+	}
+
+	/**
+	 * Start the HTTP server and collect snapshots until the process is terminated.
+	 *
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		query = Main.getQuery(null, output, QueryMode.MULTIGRAPH);
+		HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange aExchange) throws IOException {
+				serve(aExchange);
+			}
+		});
+		server.start();
+		output.err.println(String.format("Serving metrics on %s:%d", host, port));
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				long start = System.currentTimeMillis();
+				collect();
+				long sleep = interval * 1000L - (System.currentTimeMillis() - start);
+				if (sleep > 0) {
+					Thread.sleep(sleep);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			server.stop(0);
+			query.close();
+		}
+	}
+
+	/**
+	 * Collect a new snapshot
+	 */
+	protected void collect() {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		Output snapshotOutput = new Output(new FieldWriter(buffer), output.err);
+		query.setOutput(snapshotOutput);
+		long start = System.nanoTime();
+		try {
+			query.printMetrics(destinations);
+		} catch (Exception e) {
+			output.err.println("Unable to collect the metrics");
+			e.printStackTrace(output.err);
+		}
+		FieldWriter writer = snapshotOutput.getWriter();
+		writer.println("# HELP activemq_collect_duration_seconds The time it took to collect the metrics.");
+		writer.println("# TYPE activemq_collect_duration_seconds gauge");
+		writer.print("activemq_collect_duration_seconds ").print(String.valueOf((System.nanoTime() - start) / 1e9)).println();
+		writer.println("# HELP activemq_collect_timestamp_seconds The time the metrics were collected.");
+		writer.println("# TYPE activemq_collect_timestamp_seconds gauge");
+		writer.print("activemq_collect_timestamp_seconds ").print(System.currentTimeMillis() / 1000).println();
+		snapshotOutput.flush();
+		snapshot = buffer.toByteArray();
+	}
+
+	/**
+	 * Answer a scrape with the last snapshot
+	 *
+	 * @param aExchange
+	 * @throws IOException
+	 */
+	protected void serve(HttpExchange aExchange) throws IOException {
+		try {
+			byte[] data = snapshot;
+			if (!"GET".equals(aExchange.getRequestMethod()) && !"HEAD".equals(aExchange.getRequestMethod())) {
+				aExchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			if (data == null) {
+				aExchange.sendResponseHeaders(503, -1);
+				return;
+			}
+			aExchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			if ("HEAD".equals(aExchange.getRequestMethod())) {
+				aExchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			aExchange.sendResponseHeaders(200, data.length);
+			OutputStream out = aExchange.getResponseBody();
+			out.write(data);
+			out.close();
+		} finally {
+			aExchange.close();
+		}
+	}
+}
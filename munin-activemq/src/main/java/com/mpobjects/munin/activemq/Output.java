@@ -16,16 +16,23 @@
  */
 package com.mpobjects.munin.activemq;
 
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.PrintStream;
 
 /**
  * A helper class for the output of this utility. The only reason that this exists is because we don't want to hard link
  * to System.out and System.err. In the future we might want to use different output mechanisms.
+ * <p>
+ * All standard output goes through a {@link FieldWriter}, {@link #out} writes to the same buffer. Nothing is written
+ * until the buffer is full or {@link #flush()} is called.
  */
 public class Output {
 	public PrintStream out;
 	public PrintStream err;
 
+	protected FieldWriter writer;
+
 	/**
 	 * Used to set the exit code which will be used at the end of the program.
 	 */
@@ -35,7 +42,7 @@ public class Output {
 	 * Standard output using the system out and err.
 	 */
 	public Output() {
-		this(System.out, System.err);
+		this(new FieldWriter(new FileOutputStream(FileDescriptor.out)), System.err);
 	}
 
 	/**
@@ -49,10 +56,41 @@ public class Output {
 		if (aErr == null) {
 			throw new NullPointerException("Err cannot be null");
 		}
-		out = aOut;
+		writer = new FieldWriter(aOut);
+		out = new PrintStream(writer);
 		err = aErr;
 	}
 
+	/**
+	 * @param aWriter
+	 * @param aErr
+	 */
+	public Output(FieldWriter aWriter, PrintStream aErr) {
+		if (aWriter == null) {
+			throw new NullPointerException("Writer cannot be null");
+		}
+		if (aErr == null) {
+			throw new NullPointerException("Err cannot be null");
+		}
+		writer = aWriter;
+		out = new PrintStream(writer);
+		err = aErr;
+	}
+
+	/**
+	 * @return the writer
+	 */
+	public FieldWriter getWriter() {
+		return writer;
+	}
+
+	/**
+	 * Write all buffered output
+	 */
+	public void flush() {
+		out.flush();
+	}
+
 	/**
 	 * @param aExitCode
 	 *            the exitCode to set
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Access to the plugin state directory provided by munin through MUNIN_PLUGSTATE. State is kept in properties files
+ * which are replaced atomically.
+ */
+public class PluginState {
+	protected File directory;
+
+	public PluginState() {
+		super();
+		init();
+	}
+
+	/**
+	 * @param aDirectory
+	 *            the state directory, or null to disable state
+	 */
+	public PluginState(File aDirectory) {
+		super();
+		directory = aDirectory;
+	}
+
+	protected void init() {
+		Map<String, String> env = System.getenv();
+		String dir;
+		if (env.get("MUNIN_PLUGSTATE") != null) {
+			dir = env.get("MUNIN_PLUGSTATE");
+		} else {
+			dir = System.getProperty("MUNIN_PLUGSTATE");
+		}
+		if (dir != null && dir.length() > 0) {
+			directory = new File(dir);
+		}
+	}
+
+	/**
+	 * @return true when a state directory is configured
+	 */
+	public boolean isAvailable() {
+		return directory != null;
+	}
+
+	/**
+	 * @return the directory
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @param aName
+	 * @return The file for the given state name
+	 */
+	public File getFile(String aName) {
+		if (directory == null) {
+			throw new IllegalStateException("No plugin state directory available");
+		}
+		return new File(directory, "activemq_" + sanitize(aName));
+	}
+
+	/**
+	 * Load the state with the given name
+	 *
+	 * @param aName
+	 * @return The state, or null when there is no state.
+	 * @throws IOException
+	 */
+	public Properties load(String aName) throws IOException {
+		if (directory == null) {
+			return null;
+		}
+		File file = getFile(aName);
+		if (!file.isFile()) {
+			return null;
+		}
+		Properties props = new Properties();
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		return props;
+	}
+
+	/**
+	 * Store the state under the given name. The state is written to a temporary file first, so that concurrent
+	 * readers never see a partial file. The temporary file is unique, so concurrent writers do not overwrite each
+	 * other's file.
+	 *
+	 * @param aName
+	 * @param aProps
+	 * @throws IOException
+	 */
+	public void store(String aName, Properties aProps) throws IOException {
+		if (directory == null) {
+			return;
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create state directory: " + directory);
+		}
+		File file = getFile(aName);
+		File tmp = File.createTempFile(file.getName() + ".", ".tmp", directory);
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+			try {
+				aProps.store(out, null);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Unable to write state file: " + file);
+		}
+	}
+
+	/**
+	 * Remove the state with the given name, if any
+	 *
+	 * @param aName
+	 */
+	public void delete(String aName) {
+		if (directory == null) {
+			return;
+		}
+		getFile(aName).delete();
+	}
+
+	/**
+	 * @param aName
+	 * @return The name with all characters unsafe for a file name replaced.
+	 */
+	public static String sanitize(String aName) {
+		return aName.replaceAll("[^a-zA-Z0-9._-]+", "_");
+	}
+}
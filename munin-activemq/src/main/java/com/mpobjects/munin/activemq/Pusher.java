@@ -0,0 +1,202 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.mpobjects.munin.activemq.jmx.AmqJmxQuery;
+import com.mpobjects.munin.activemq.push.GraphiteTarget;
+import com.mpobjects.munin.activemq.push.PushPipeline;
+import com.mpobjects.munin.activemq.push.PushTarget;
+import com.mpobjects.munin.activemq.push.StatsdTarget;
+
+/**
+ * Pushes the values of all graphs to Graphite and/or StatsD every PUSH_INTERVAL seconds. Every sample is collected
+ * into a single batch which is sent by a background thread, a slow receiver never delays the collection.
+ */
+public class Pusher {
+	protected static final int GRAPHITE_PORT = 2003;
+	protected static final int STATSD_PORT = 8125;
+
+	/**
+	 * host:port of the Graphite plaintext receiver
+	 */
+	protected String graphite;
+
+	/**
+	 * host:port of the StatsD daemon
+	 */
+	protected String statsd;
+
+	/**
+	 * Maximum size of a StatsD datagram
+	 */
+	protected int packetSize = 1432;
+
+	/**
+	 * Seconds between two samples
+	 */
+	protected int interval = 10;
+
+	/**
+	 * Number of batches which may wait for the sender
+	 */
+	protected int queueSize = 10;
+
+	/**
+	 * Prepended to every path
+	 */
+	protected String prefix = "activemq";
+
+	protected Output output;
+	protected AmqJmxQuery query;
+	protected List<String> destinations;
+	protected PushPipeline pipeline;
+
+	/**
+	 * @param aOutput
+	 * @param aDestinations
+	 *            the destinations to collect, when empty DESTINATIONS is used, or else all queues and topics.
+	 */
+	public Pusher(Output aOutput, List<String> aDestinations) {
+		super();
+		if (aOutput == null) {
+			throw new NullPointerException("Output cannot be null");
+		}
+		output = aOutput;
+		destinations = new ArrayList<String>(aDestinations);
+		init();
+	}
+
+	protected void init() {
+		Map<String, String> env = System.getenv();
+		if (env.get("GRAPHITE") != null) {
+			graphite = env.get("GRAPHITE");
+		} else {
+			graphite = System.getProperty("GRAPHITE");
+		}
+		if (env.get("STATSD") != null) {
+			statsd = env.get("STATSD");
+		} else {
+			statsd = System.getProperty("STATSD");
+		}
+		if (env.get("STATSD_PACKET_SIZE") != null) {
+			packetSize = Integer.parseInt(env.get("STATSD_PACKET_SIZE"));
+		} else {
+			packetSize = Integer.getInteger("STATSD_PACKET_SIZE", packetSize);
+		}
+		if (env.get("PUSH_INTERVAL") != null) {
+			interval = Integer.parseInt(env.get("PUSH_INTERVAL"));
+		} else {
+			interval = Integer.getInteger("PUSH_INTERVAL", interval);
+		}
+		if (env.get("PUSH_QUEUE") != null) {
+			queueSize = Integer.parseInt(env.get("PUSH_QUEUE"));
+		} else {
+			queueSize = Integer.getInteger("PUSH_QUEUE", queueSize);
+		}
+		if (env.get("PUSH_PREFIX") != null) {
+			prefix = env.get("PUSH_PREFIX");
+		} else {
+			prefix = System.getProperty("PUSH_PREFIX", prefix);
+		}
+		if (destinations.isEmpty()) {
+			String dests = env.get("DESTINATIONS");
+			if (dests == null) {
+				dests = System.getProperty("DESTINATIONS", "");
+			}
+			for (String dest : dests.trim().split("\\s+")) {
+				if (dest.length() > 0) {
+					destinations.add(dest);
+				}
+			}
+		}
+		if (destinations.isEmpty()) {
+			destinations.addAll(Arrays.asList("+queue:.*", "+topic:.*"));
+		}
+	}
+
+	/**
+	 * Collect and push samples until the process is terminated.
+	 */
+	public void run() {
+		List<PushTarget> targets = new ArrayList<PushTarget>();
+		if (graphite != null && graphite.trim().length() > 0) {
+			targets.add(new GraphiteTarget(getHost(graphite), getPort(graphite, GRAPHITE_PORT), 5000));
+		}
+		if (statsd != null && statsd.trim().length() > 0) {
+			targets.add(new StatsdTarget(getHost(statsd), getPort(statsd, STATSD_PORT), packetSize));
+		}
+		if (targets.isEmpty()) {
+			throw new IllegalStateException("Neither GRAPHITE nor STATSD was set");
+		}
+		query = Main.getQuery(null, output, QueryMode.MULTIGRAPH);
+		pipeline = new PushPipeline(targets, queueSize, output.err);
+		pipeline.start();
+		output.err.println(String.format("Pushing to %s every %d seconds", targets, interval));
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				long start = System.currentTimeMillis();
+				collect(start / 1000);
+				long sleep = interval * 1000L - (System.currentTimeMillis() - start);
+				if (sleep > 0) {
+					Thread.sleep(sleep);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			pipeline.stop();
+			query.close();
+		}
+	}
+
+	/**
+	 * Collect a single sample and queue it
+	 *
+	 * @param aTimestamp
+	 */
+	protected void collect(long aTimestamp) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		Output batchOutput = new Output(new FieldWriter(buffer), output.err);
+		query.setOutput(batchOutput);
+		try {
+			query.printGraphite(destinations, prefix.length() == 0 ? "" : prefix + ".", aTimestamp);
+		} catch (Exception e) {
+			output.err.println("Unable to collect the values");
+			e.printStackTrace(output.err);
+		}
+		batchOutput.flush();
+		if (buffer.size() > 0) {
+			pipeline.submit(buffer.toByteArray());
+		}
+	}
+
+	protected static String getHost(String aAddress) {
+		int idx = aAddress.lastIndexOf(':');
+		return (idx == -1 ? aAddress : aAddress.substring(0, idx)).trim();
+	}
+
+	protected static int getPort(String aAddress, int aDefault) {
+		int idx = aAddress.lastIndexOf(':');
+		return idx == -1 ? aDefault : Integer.parseInt(aAddress.substring(idx + 1).trim());
+	}
+}
@@ -41,7 +41,23 @@ public enum QueryAction {
 	/**
 	 * List all known destinations
 	 */
-	LIST;
+	LIST,
+	/**
+	 * Run as a resident collector which keeps the JMX connection open and answers plugin requests over a local socket.
+	 */
+	DAEMON,
+	/**
+	 * Serve the values of all graphs in the Prometheus text format over HTTP.
+	 */
+	METRICS,
+	/**
+	 * Push the values of all graphs to Graphite and/or StatsD.
+	 */
+	PUSH,
+	/**
+	 * Collect supersamples of the given query mode in the background, which are returned by the next fetch.
+	 */
+	SAMPLE;
 
 	public static final QueryAction parse(String string) {
 		for (QueryAction action : EnumSet.allOf(QueryAction.class)) {
@@ -33,7 +33,39 @@ public enum QueryMode {
 	/**
 	 * Number of messages that pass through the destination. This is based on the EnqueueCount and DequeueCount.
 	 */
-	TRAFFIC;
+	TRAFFIC,
+	/**
+	 * Munin multigraph containing the {@link #SIZE}, {@link #SUBSCRIBERS} and {@link #TRAFFIC} graphs, read in a single
+	 * pass.
+	 */
+	MULTIGRAPH,
+	/**
+	 * Enqueue and dequeue rates, backlog growth and the dequeue/enqueue ratio, computed from the EnqueueCount,
+	 * DequeueCount and QueueSize of the previous run. Not part of the {@link #MULTIGRAPH}.
+	 */
+	RATES,
+	/**
+	 * Memory, store and temp usage of the broker, which trigger producer flow control at their limit, and the memory
+	 * usage of the destinations. Not part of the {@link #MULTIGRAPH}.
+	 */
+	RESOURCES,
+	/**
+	 * Consumer lag: the average and maximum time messages spend on the destination, the number of messages dispatched
+	 * but not acknowledged, and the dispatched and expired messages. Not part of the {@link #MULTIGRAPH}.
+	 */
+	LATENCY,
+	/**
+	 * The destinations with the highest value of a single attribute, QueueSize by default, in a fixed number of
+	 * ranked fields and the total of all other destinations. Not part of the {@link #MULTIGRAPH}.
+	 */
+	TOP;
+
+	/**
+	 * @return The modes which are included in a {@link #MULTIGRAPH}
+	 */
+	public static final EnumSet<QueryMode> graphModes() {
+		return EnumSet.of(SIZE, SUBSCRIBERS, TRAFFIC);
+	}
 
 	/**
 	 * Parse a string to a {@link QueryMode} value.
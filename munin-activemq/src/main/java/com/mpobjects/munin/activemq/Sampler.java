@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.mpobjects.munin.activemq.jmx.AmqJmxQuery;
+
+/**
+ * Supersampling collector. Fetches the values of a plugin every SAMPLE_INTERVAL seconds into a {@link Spool} in the
+ * plugin state directory, the next fetch of the plugin returns all spooled samples with their timestamps. It must be
+ * started with the same query mode and destinations as the plugin.
+ */
+public class Sampler {
+	/**
+	 * Seconds between two samples
+	 */
+	protected int interval;
+
+	/**
+	 * The maximum number of samples kept while munin does not fetch them
+	 */
+	protected int spoolSize = 360;
+
+	protected Output output;
+	protected QueryMode mode;
+	protected List<String> destinations;
+	protected PluginState pluginState;
+
+	/**
+	 * @param aOutput
+	 * @param aMode
+	 * @param aDestinations
+	 */
+	public Sampler(Output aOutput, QueryMode aMode, List<String> aDestinations) {
+		super();
+		if (aOutput == null) {
+			throw new NullPointerException("Output cannot be null");
+		}
+		output = aOutput;
+		mode = aMode;
+		destinations = new ArrayList<String>(aDestinations);
+		init();
+	}
+
+	protected void init() {
+		Map<String, String> env = System.getenv();
+		interval = getInterval();
+		if (env.get("SAMPLE_SPOOL") != null) {
+			spoolSize = Integer.parseInt(env.get("SAMPLE_SPOOL"));
+		} else {
+			spoolSize = Integer.getInteger("SAMPLE_SPOOL", spoolSize);
+		}
+		pluginState = new PluginState();
+	}
+
+	/**
+	 * @return The configured SAMPLE_INTERVAL, 0 when supersampling is disabled
+	 */
+	public static int getInterval() {
+		String value = System.getenv("SAMPLE_INTERVAL");
+		if (value != null) {
+			return Integer.parseInt(value);
+		}
+		return Integer.getInteger("SAMPLE_INTERVAL", 0);
+	}
+
+	/**
+	 * Collect samples until the process is terminated.
+	 */
+	public void run() {
+		if (interval <= 0) {
+			throw new IllegalStateException("SAMPLE_INTERVAL is not set");
+		}
+		if (!pluginState.isAvailable()) {
+			throw new IllegalStateException("MUNIN_PLUGSTATE is not set, it must be the state directory of the plugin");
+		}
+		AmqJmxQuery query = Main.getQuery(null, output, mode);
+		Spool spool = new Spool(pluginState.getFile(Spool.getName(query.getStateName(), mode, destinations)), spoolSize);
+		output.err.println(String.format("Sampling every %d seconds into %s", interval, spool.file));
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				long start = System.currentTimeMillis();
+				collect(query, spool, start / 1000);
+				long sleep = interval * 1000L - (System.currentTimeMillis() - start);
+				if (sleep > 0) {
+					Thread.sleep(sleep);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			query.close();
+		}
+	}
+
+	/**
+	 * Fetch a single sample and spool it
+	 *
+	 * @param aQuery
+	 * @param aSpool
+	 * @param aTimestamp
+	 */
+	protected void collect(AmqJmxQuery aQuery, Spool aSpool, long aTimestamp) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		Output sampleOutput = new Output(new FieldWriter(buffer), output.err);
+		aQuery.setOutput(sampleOutput);
+		try {
+			aQuery.printValues(destinations);
+			sampleOutput.flush();
+			aSpool.append(aTimestamp, buffer.toString());
+		} catch (Exception e) {
+			output.err.println("Unable to collect a sample");
+			e.printStackTrace(output.err);
+		}
+	}
+
+	/**
+	 * Print the spooled samples of a plugin, if any.
+	 *
+	 * @param aOutput
+	 * @param aQuery
+	 *            the query of the plugin, it is not connected
+	 * @param aMode
+	 * @param aDestinations
+	 * @return true when samples were printed, false when the values have to be fetched from the broker.
+	 * @throws IOException
+	 */
+	public static boolean printSpooled(Output aOutput, AmqJmxQuery aQuery, QueryMode aMode, List<String> aDestinations)
+			throws IOException {
+		PluginState state = new PluginState();
+		if (getInterval() <= 0 || !state.isAvailable()) {
+			return false;
+		}
+		Spool spool = new Spool(state.getFile(Spool.getName(aQuery.getStateName(), aMode, aDestinations)), 0);
+		return spool.drain(aOutput.getWriter());
+	}
+}
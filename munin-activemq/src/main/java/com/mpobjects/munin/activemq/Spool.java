@@ -0,0 +1,207 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * On-disk buffer of timestamped values, written by the {@link Sampler} and emptied by the fetch of the plugin. Every
+ * value is a line <code>timestamp graph field value</code>, where the graph is <code>-</code> for plain (not
+ * multigraph) output. The file is locked while it is accessed, so the sampler and munin can use it concurrently.
+ */
+public class Spool {
+	protected static final String CHARSET = "UTF-8";
+
+	protected static final String NO_GRAPH = "-";
+
+	protected File file;
+
+	/**
+	 * The maximum number of samples kept, older samples are dropped. 0 for no limit.
+	 */
+	protected int maxSamples;
+
+	/**
+	 * Size in bytes of the last appended sample, used to estimate the number of samples in the file
+	 */
+	protected int sampleSize;
+
+	/**
+	 * @param aFile
+	 * @param aMaxSamples
+	 */
+	public Spool(File aFile, int aMaxSamples) {
+		super();
+		file = aFile;
+		maxSamples = aMaxSamples;
+	}
+
+	/**
+	 * @param aBroker
+	 *            the state name of the broker, see {@link com.mpobjects.munin.activemq.jmx.AmqJmxQuery#getStateName()}
+	 * @param aMode
+	 * @param aDests
+	 * @return The state name of the spool of a plugin, derived from its broker and arguments
+	 */
+	public static String getName(String aBroker, QueryMode aMode, List<String> aDests) {
+		StringBuilder sb = new StringBuilder();
+		for (String dest : aDests) {
+			sb.append(dest).append(' ');
+		}
+		return String.format("spool_%s_%s_%08x", aBroker, aMode.toString().toLowerCase(), sb.toString().hashCode());
+	}
+
+	/**
+	 * Add a sample
+	 *
+	 * @param aTimestamp
+	 *            seconds since the epoch
+	 * @param aValues
+	 *            the fetch output
+	 * @throws IOException
+	 */
+	public void append(long aTimestamp, String aValues) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		String graph = NO_GRAPH;
+		for (String line : aValues.split("\n")) {
+			line = line.trim();
+			if (line.startsWith("multigraph ")) {
+				graph = line.substring(11).trim();
+				continue;
+			}
+			int idx = line.indexOf(".value ");
+			if (idx == -1) {
+				continue;
+			}
+			sb.append(aTimestamp).append(' ').append(graph).append(' ').append(line.substring(0, idx));
+			sb.append(' ').append(line.substring(idx + 7).trim()).append('\n');
+		}
+		byte[] data = sb.toString().getBytes(CHARSET);
+		if (data.length == 0) {
+			return;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileLock lock = raf.getChannel().lock();
+			try {
+				raf.seek(raf.length());
+				raf.write(data);
+				sampleSize = data.length;
+				if (maxSamples > 0 && raf.length() > (long) maxSamples * sampleSize) {
+					trim(raf);
+				}
+			} finally {
+				lock.release();
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Drop the oldest samples, a quarter of the limit is freed so that trimming is not needed for every sample.
+	 *
+	 * @param aFile
+	 * @throws IOException
+	 */
+	protected void trim(RandomAccessFile aFile) throws IOException {
+		String[] lines = read(aFile).split("\n");
+		List<String> timestamps = new ArrayList<String>();
+		for (String line : lines) {
+			String ts = line.substring(0, Math.max(line.indexOf(' '), 0));
+			if (timestamps.isEmpty() || !timestamps.get(timestamps.size() - 1).equals(ts)) {
+				timestamps.add(ts);
+			}
+		}
+		int keep = Math.max(maxSamples * 3 / 4, 1);
+		if (timestamps.size() <= keep) {
+			return;
+		}
+		long cutoff = Long.parseLong(timestamps.get(timestamps.size() - keep));
+		StringBuilder sb = new StringBuilder();
+		for (String line : lines) {
+			int idx = line.indexOf(' ');
+			if (idx > 0 && Long.parseLong(line.substring(0, idx)) >= cutoff) {
+				sb.append(line).append('\n');
+			}
+		}
+		aFile.setLength(0);
+		aFile.write(sb.toString().getBytes(CHARSET));
+	}
+
+	/**
+	 * Print all samples as timestamped values and empty the spool.
+	 *
+	 * @param aWriter
+	 * @return false when there were no samples
+	 * @throws IOException
+	 */
+	public boolean drain(FieldWriter aWriter) throws IOException {
+		if (!file.isFile()) {
+			return false;
+		}
+		String content;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileLock lock = raf.getChannel().lock();
+			try {
+				content = read(raf);
+				raf.setLength(0);
+			} finally {
+				lock.release();
+			}
+		} finally {
+			raf.close();
+		}
+		// values are grouped per graph, a graph may only be printed once
+		Map<String, StringBuilder> graphs = new LinkedHashMap<String, StringBuilder>();
+		for (String line : content.split("\n")) {
+			String[] parts = line.split(" ", 4);
+			if (parts.length < 4) {
+				continue;
+			}
+			StringBuilder sb = graphs.get(parts[1]);
+			if (sb == null) {
+				sb = new StringBuilder();
+				graphs.put(parts[1], sb);
+			}
+			sb.append(parts[2]).append(".value ").append(parts[0]).append(':').append(parts[3]).append('\n');
+		}
+		for (Entry<String, StringBuilder> entry : graphs.entrySet()) {
+			if (!NO_GRAPH.equals(entry.getKey())) {
+				aWriter.print("multigraph ").println(entry.getKey());
+			}
+			aWriter.print(entry.getValue().toString());
+		}
+		return !graphs.isEmpty();
+	}
+
+	protected static String read(RandomAccessFile aFile) throws IOException {
+		byte[] data = new byte[(int) aFile.length()];
+		aFile.seek(0);
+		aFile.readFully(data);
+		return new String(data, CHARSET);
+	}
+}
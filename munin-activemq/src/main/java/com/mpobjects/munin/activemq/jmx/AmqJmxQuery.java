@@ -16,22 +16,36 @@
  */
 package com.mpobjects.munin.activemq.jmx;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.management.Attribute;
-import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 
+import com.mpobjects.munin.activemq.Deadline;
+import com.mpobjects.munin.activemq.FieldWriter;
 import com.mpobjects.munin.activemq.Output;
+import com.mpobjects.munin.activemq.PluginState;
 import com.mpobjects.munin.activemq.QueryMode;
 
 /**
@@ -44,12 +58,141 @@ public class AmqJmxQuery extends JmxConnection {
 	 */
 	protected static final Pattern DEST_PATTERN = Pattern.compile("((\\w+):)?(.*)");
 
-	protected String brokerName = "localhost";
+	/**
+	 * The supported naming schemes
+	 */
+	protected static final NamingScheme[] NAMING_SCHEMES = { NamingScheme.INSTANCE, NamingScheme58.INSTANCE };
+
+	/**
+	 * The metric name, type and help text of the attributes exposed by {@link #printMetrics(List)}
+	 */
+	protected static final Map<String, String[]> METRICS = new LinkedHashMap<String, String[]>();
+
+	/**
+	 * The usage attributes of the broker bean, see {@link QueryMode#RESOURCES}
+	 */
+	protected static final String[] BROKER_USAGE = { "MemoryPercentUsage", "StorePercentUsage", "TempPercentUsage" };
+
+	/**
+	 * The usage attributes of the destination beans, see {@link QueryMode#RESOURCES}
+	 */
+	protected static final String[] DESTINATION_USAGE = { "MemoryPercentUsage", "MemoryUsageByteCount" };
+
+	/**
+	 * The number of destinations read at once for the {@link QueryMode#TOP} graph
+	 */
+	protected static final int TOP_CHUNK = 500;
+
+	static {
+		METRICS.put("QueueSize", new String[] { "activemq_queue_size", "gauge", "The number of messages currently waiting on the destination." });
+		METRICS.put("ConsumerCount", new String[] { "activemq_consumers", "gauge", "The number of consumers of the destination." });
+		METRICS.put("ProducerCount", new String[] { "activemq_producers", "gauge", "The number of producers of the destination." });
+		METRICS.put("EnqueueCount", new String[] { "activemq_enqueued_messages_total", "counter", "The number of messages sent to the destination." });
+		METRICS.put("DequeueCount", new String[] { "activemq_dequeued_messages_total", "counter", "The number of messages acknowledged from the destination." });
+	}
+
+	/**
+	 * The name of the broker, defaults to localhost. Fields which are set in {@link #init()} have no initializer, as it
+	 * would be applied after init() has been called by the super constructor.
+	 */
+	protected String brokerName;
+
+	/**
+	 * Number of attribute reads which are performed concurrently when fetching the values of multiple destinations.
+	 * Default 4.
+	 */
+	protected int fetchThreads;
+
+	/**
+	 * Seconds a fetch may take in total, should be below the timeout of munin-node. Destinations which have not been
+	 * read by then are reported as unknown. Default 8, 0 means no limit.
+	 */
+	protected int fetchTimeout;
+
+	/**
+	 * Number of JMX connections the fetch workers are spread over. Default 1.
+	 */
+	protected int fetchConnections;
+
+	/**
+	 * The connections used for fetching in addition to the main connection
+	 */
+	protected List<JmxTransport> fetchConnectors = new ArrayList<JmxTransport>();
+
+	/**
+	 * Seconds the discovered destinations are used without checking the broker. Default 3600.
+	 */
+	protected int discoveryTtl;
+
+	/**
+	 * Seconds after which the detected brokers are detected again, also limits the {@link #discoveryTtl}. Default
+	 * 86400.
+	 */
+	protected int discoveryMaxAge;
+
+	/**
+	 * True when munin accepts the values in the config output, MUNIN_CAP_DIRTYCONFIG
+	 */
+	protected boolean dirtyConfig;
+
+	/**
+	 * Seconds between two supersamples, announced as update_rate. 0 when supersampling is disabled.
+	 */
+	protected int sampleInterval;
+
+	/**
+	 * The number of ranked fields of the {@link QueryMode#TOP} graph. Default 20.
+	 */
+	protected int topSize;
+
+	/**
+	 * The attribute by which the destinations are ranked in the {@link QueryMode#TOP} graph. Default QueueSize.
+	 */
+	protected String topAttribute;
+
+	/**
+	 * The selection of the last {@link #fetchTop(List, String[])}, until it is printed
+	 */
+	protected TopSelection topSelection;
+
+	protected PluginState pluginState;
+
+	protected DiscoveryCache discoveryCache;
+
+	/**
+	 * The compiled destination selectors of the last call.
+	 */
+	protected DestinationSelector selector;
+
+	/**
+	 * The destinations used so far, with their field names.
+	 */
+	protected DestinationCatalog catalog;
 
 	protected QueryMode mode = null;
 
+	/**
+	 * Optional label of the broker, used to prefix field names and labels when multiple brokers share a graph.
+	 */
+	protected String brokerLabel;
+
 	protected NamingScheme namingScheme;
 
+	/**
+	 * When true the brokers are detected again instead of using the ones remembered in the plugin state.
+	 */
+	protected boolean redetect;
+
+	/**
+	 * True when the broker name was configured, otherwise the broker is selected from the detected brokers.
+	 */
+	protected boolean brokerNameConfigured;
+
+	/**
+	 * The brokers found in the MBean server and the naming scheme they use
+	 */
+	protected Map<String, NamingScheme> detectedBrokers;
+
 	public AmqJmxQuery(Output aOutput) {
 		super(aOutput);
 		if (aOutput == null) {
@@ -65,11 +208,102 @@ public class AmqJmxQuery extends JmxConnection {
 		mode = aMode;
 	}
 
+	/**
+	 * @param aBrokerName
+	 *            the brokerName to set
+	 */
+	public void setBrokerName(String aBrokerName) {
+		brokerName = aBrokerName;
+		brokerNameConfigured = true;
+	}
+
+	/**
+	 * @return the brokerName
+	 */
+	public String getBrokerName() {
+		return brokerName;
+	}
+
+	/**
+	 * @return The brokers found in the MBean server and their naming scheme, available after connecting.
+	 */
+	public Map<String, NamingScheme> getDetectedBrokers() {
+		return detectedBrokers;
+	}
+
+	/**
+	 * @param aBrokerLabel
+	 *            the brokerLabel to set
+	 */
+	public void setBrokerLabel(String aBrokerLabel) {
+		brokerLabel = aBrokerLabel;
+		catalog = null;
+	}
+
+	/**
+	 * @return the brokerLabel
+	 */
+	public String getBrokerLabel() {
+		return brokerLabel;
+	}
+
+	/**
+	 * @return The prefix of all plugin state names of the broker, <code>host_port_brokerName</code>, or the URL and
+	 *         broker name for Jolokia and local connections. Only configured values are used, so that it is the same
+	 *         before and after connecting.
+	 */
+	public String getStateName() {
+		String broker = brokerNameConfigured ? brokerName : "default";
+		if (jolokiaUrl != null || localTarget != null) {
+			return DestinationCatalog.sanitize(getJmxUrl()) + "_" + broker;
+		}
+		return String.format("%s_%d_%s", host, port, broker);
+	}
+
+	/**
+	 * @param aMode
+	 *            the query mode to use for subsequent calls
+	 */
+	public void setMode(QueryMode aMode) {
+		mode = aMode;
+	}
+
+	/**
+	 * @param aDirtyConfig
+	 *            true when munin accepts the values in the config output, see MUNIN_CAP_DIRTYCONFIG
+	 */
+	public void setDirtyConfig(boolean aDirtyConfig) {
+		dirtyConfig = aDirtyConfig;
+	}
+
+	/**
+	 * The broker may have been upgraded or replaced, so detect the brokers and their naming scheme again and drop the
+	 * object names derived from the old naming scheme.
+	 */
+	@Override
+	protected void reconnected() {
+		namingScheme = null;
+		detectedBrokers = null;
+		catalog = null;
+		redetect = true;
+	}
+
+	@Override
+	public void close() {
+		closeFetchConnectors();
+		super.close();
+	}
+
 	@Override
 	public boolean connect() {
 		boolean ret = super.connect();
-		if (ret && namingScheme == null) {
+		if (ret && (namingScheme == null || redetect)) {
+			NamingScheme previous = namingScheme;
 			determineNamingScheme();
+			if (previous != null && namingScheme != previous) {
+				// the object names in the catalog use the old naming scheme
+				catalog = null;
+			}
 			if (namingScheme == null) {
 				output.err.println("Unable to determine JMX naming scheme. No ActiveMQ registered?");
 				return false;
@@ -104,7 +338,7 @@ public class AmqJmxQuery extends JmxConnection {
 					continue;
 				}
 				try {
-					if (!connection.isRegistered(dest)) {
+					if (!transport.isRegistered(dest)) {
 						continue;
 					}
 				} catch (Exception e) {
@@ -134,34 +368,297 @@ public class AmqJmxQuery extends JmxConnection {
 		if (mode == null) {
 			throw new IllegalStateException("No query mode was set");
 		}
+		boolean dirty = isDirtyConfig();
+		if (!dirty && isDiscoveryCurrent() && loadNamingScheme()) {
+			// the destinations and naming scheme are known, the broker is not needed
+			printCachedConfig(aDests, resolveDestinations(aDests));
+			return;
+		}
 		if (!connect()) {
+			String config = loadConfig(aDests, null);
+			if (config != null) {
+				output.err.println("Unable to connect, using the cached configuration");
+				output.getWriter().print(config);
+				return;
+			}
 			output.err.println("Unable to connect");
 			output.setExitCode(1);
 			return;
 		}
-		aDests = expandDestinations(aDests);
-		List<ObjectName> destinations = new ArrayList<ObjectName>();
-		for (String destStr : aDests) {
-			try {
-				destinations.add(getObjectName(destStr));
-			} catch (IllegalArgumentException e) {
-				output.err.println("Invalid destination: " + destStr);
-				e.printStackTrace(output.err);
-				continue;
+		if (!dirty && getDiscoveryCache() != null) {
+			// refresh the discovery cache so that the next runs do not need the broker
+			getKnownDestinations();
+		}
+		List<ObjectName> destinations = resolveDestinations(aDests);
+		if (!dirty) {
+			printCachedConfig(aDests, destinations);
+			return;
+		}
+		Map<ObjectName, Map<String, Object>> values;
+		setDeadline(Deadline.in(fetchTimeout * 1000L));
+		try {
+			values = fetchValues(destinations, getAttributeNames());
+		} finally {
+			setDeadline(Deadline.NONE);
+		}
+		if (mode == QueryMode.MULTIGRAPH) {
+			for (QueryMode graphMode : QueryMode.graphModes()) {
+				println(formatMultigraph(graphMode));
+				printConfig(graphMode, destinations);
+				printValues(graphMode, destinations, values);
+			}
+		} else {
+			printConfig(mode, destinations);
+			printValues(mode, destinations, values);
+		}
+	}
+
+	/**
+	 * Print the configuration from the plugin state when it was generated for the same destinations, otherwise
+	 * generate and store it.
+	 *
+	 * @param aDests
+	 * @param aDestinations
+	 *            the resolved destinations
+	 */
+	protected void printCachedConfig(List<String> aDests, List<ObjectName> aDestinations) {
+		String key = getConfigKey(aDestinations);
+		String config = loadConfig(aDests, key);
+		if (config == null) {
+			config = formatConfig(aDestinations);
+			storeConfig(aDests, key, config);
+		}
+		output.getWriter().print(config);
+	}
+
+	/**
+	 * @param aDestinations
+	 * @return The configuration for the current mode
+	 */
+	protected String formatConfig(List<ObjectName> aDestinations) {
+		Output original = output;
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		Output configOutput = new Output(new FieldWriter(buffer), original.err);
+		output = configOutput;
+		try {
+			if (mode == QueryMode.MULTIGRAPH) {
+				for (QueryMode graphMode : QueryMode.graphModes()) {
+					println(formatMultigraph(graphMode));
+					printConfig(graphMode, aDestinations);
+				}
+			} else {
+				printConfig(mode, aDestinations);
+			}
+			configOutput.flush();
+		} finally {
+			output = original;
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * The key identifying a generated configuration: the naming scheme, broker label, update rate, the size and
+	 * attribute of a top graph and a digest of the destinations. The mode and broker are part of the state name.
+	 *
+	 * @param aDestinations
+	 * @return
+	 */
+	protected String getConfigKey(List<ObjectName> aDestinations) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(namingScheme.getClass().getSimpleName()).append(' ').append(brokerLabel).append(' ').append(sampleInterval).append(' ');
+		if (mode == QueryMode.TOP) {
+			sb.append(topSize).append(' ').append(topAttribute).append(' ');
+		}
+		List<String> names = new ArrayList<String>(aDestinations.size());
+		for (ObjectName dest : aDestinations) {
+			names.add(dest.getCanonicalName());
+		}
+		sb.append(digest(names));
+		return sb.toString();
+	}
+
+	/**
+	 * @param aValues
+	 * @return The SHA-1 digest of the values, in hexadecimal
+	 */
+	protected static String digest(List<String> aValues) {
+		StringBuilder sb = new StringBuilder();
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			for (String value : aValues) {
+				digest.update(value.getBytes("UTF-8"));
+				digest.update((byte) '\n');
+			}
+			for (byte b : digest.digest()) {
+				sb.append(String.format("%02x", b & 0xff));
+			}
+		} catch (Exception e) {
+			// SHA-1 and UTF-8 are always available
+			throw new IllegalStateException(e);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param aDests
+	 * @param aKey
+	 *            the key of the configuration, or null to accept the last configuration stored for the destinations
+	 * @return The stored configuration, or null when there is none for the key
+	 */
+	protected String loadConfig(List<String> aDests, String aKey) {
+		try {
+			Properties props = pluginState.load(getConfigStateName(aDests));
+			if (props == null || aKey != null && !aKey.equals(props.getProperty("key"))) {
+				return null;
 			}
+			return props.getProperty("config");
+		} catch (Exception e) {
+			output.err.println("Unable to read the cached configuration");
+			e.printStackTrace(output.err);
+			return null;
+		}
+	}
+
+	/**
+	 * @param aDests
+	 * @param aKey
+	 * @param aConfig
+	 */
+	protected void storeConfig(List<String> aDests, String aKey, String aConfig) {
+		Properties props = new Properties();
+		props.setProperty("key", aKey);
+		props.setProperty("config", aConfig);
+		try {
+			pluginState.store(getConfigStateName(aDests), props);
+		} catch (Exception e) {
+			output.err.println("Unable to write the cached configuration");
+			e.printStackTrace(output.err);
+		}
+	}
+
+	/**
+	 * @param aDests
+	 *            the destination selectors
+	 * @return The name of the plugin state containing the generated configuration of the current mode and
+	 *         destination selectors
+	 */
+	protected String getConfigStateName(List<String> aDests) {
+		return String.format("%s_config_%s_%s", getStateName(), mode.toString().toLowerCase(), digest(aDests));
+	}
+
+	/**
+	 * @return True when the values are included in the config output, which saves munin a fetch. Not when
+	 *         supersampling, the spooled samples are returned by the fetch.
+	 */
+	protected boolean isDirtyConfig() {
+		return dirtyConfig && sampleInterval <= 0;
+	}
+
+	/**
+	 * Print the configuration of a single graph
+	 *
+	 * @param aMode
+	 * @param aDestinations
+	 */
+	protected void printConfig(QueryMode aMode, List<ObjectName> aDestinations) {
+		printConfigHeader(aMode);
+		printConfigFields(aMode, aDestinations);
+	}
+
+	/**
+	 * Print the graph configuration of a single graph
+	 *
+	 * @param aMode
+	 */
+	protected void printConfigHeader(QueryMode aMode) {
+		switch (aMode) {
+			case SIZE:
+				println("graph_title Queue Size");
+				println("graph_category ActiveMQ");
+				println("graph_info The number of messages currently waiting on the queue.");
+				println("graph_vlabel Messages");
+				break;
+			case SUBSCRIBERS:
+				println("graph_title Subscribers");
+				println("graph_category ActiveMQ");
+				println("graph_info The number of producers and consumers on a destination.");
+				println("graph_vlabel Clients");
+				break;
+			case TRAFFIC:
+				println("graph_title Traffic");
+				println("graph_category ActiveMQ");
+				println("graph_info The number of messages that are written to and read from the destination.");
+				println("graph_vlabel Messages");
+				break;
+			case RATES:
+				println("graph_title Message Rates");
+				println("graph_category ActiveMQ");
+				println("graph_info The number of messages written to and read from the destination per second, the growth of the backlog per second, and the number of messages read per message written.");
+				println("graph_vlabel Messages per second");
+				break;
+			case RESOURCES:
+				println("graph_title Broker Resources");
+				println("graph_category ActiveMQ");
+				println("graph_info The usage of the memory, store and temp limits of the broker, producers are blocked when a limit is reached. And the share of the memory limit used by the destination.");
+				println("graph_vlabel %");
+				println("graph_args --base 1000 --lower-limit 0 --upper-limit 100");
+				break;
+			case LATENCY:
+				println("graph_title Latency");
+				println("graph_category ActiveMQ");
+				println("graph_info The time messages spend on the destination before they are acknowledged, the messages dispatched to consumers which are not acknowledged yet, and the messages dispatched and expired per ${graph_period}.");
+				println("graph_vlabel ms / messages");
+				break;
+			case TOP:
+				println(String.format("graph_title Top %d destinations by %s", topSize, topAttribute));
+				println("graph_category ActiveMQ");
+				println(String.format("graph_info The %d destinations with the highest %s, ranked on every update. The destination of a rank is shown in its extinfo. The other destinations are added up.", topSize, topAttribute));
+				println("graph_vlabel " + topAttribute);
+				break;
+			default:
+				throw new IllegalStateException("Unknown mode: " + aMode);
 		}
-		switch (mode) {
+		if (sampleInterval > 0) {
+			// keep the samples at full resolution for a day
+			println("update_rate " + sampleInterval);
+			println("graph_data_size custom 1d, 1m for 1w, 5m for 1t, 1h for 1y");
+		}
+	}
+
+	/**
+	 * Print the field configuration of a single graph
+	 *
+	 * @param aMode
+	 * @param aDestinations
+	 */
+	protected void printConfigFields(QueryMode aMode, List<ObjectName> aDestinations) {
+		if (isGrouped(aMode)) {
+			aDestinations = new ArrayList<ObjectName>(groupDestinations(aDestinations).keySet());
+		}
+		switch (aMode) {
 			case SIZE:
-				printConfigSize(destinations);
+				printConfigSize(aDestinations);
 				break;
 			case SUBSCRIBERS:
-				printConfigSubscribers(destinations);
+				printConfigSubscribers(aDestinations);
 				break;
 			case TRAFFIC:
-				printConfigTraffic(destinations);
+				printConfigTraffic(aDestinations);
+				break;
+			case RATES:
+				printConfigRates(aDestinations);
+				break;
+			case RESOURCES:
+				printConfigResources(aDestinations);
+				break;
+			case LATENCY:
+				printConfigLatency(aDestinations);
+				break;
+			case TOP:
+				printConfigTop();
 				break;
 			default:
-				throw new IllegalStateException("Unknown mode: " + mode);
+				throw new IllegalStateException("Unknown mode: " + aMode);
 		}
 	}
 
@@ -188,123 +685,842 @@ public class AmqJmxQuery extends JmxConnection {
 		if (mode == null) {
 			throw new IllegalStateException("No query mode was set");
 		}
-		if (!connect()) {
-			output.setExitCode(1);
-			return;
-		}
-		aDests = expandDestinations(aDests);
-		for (String destStr : aDests) {
-			ObjectName dest;
-			try {
-				dest = getObjectName(destStr);
-			} catch (IllegalArgumentException e) {
-				output.err.println("Invalid destination: " + destStr);
-				e.printStackTrace(output.err);
-				continue;
+		setDeadline(Deadline.in(fetchTimeout * 1000L));
+		try {
+			if (!connect()) {
+				output.setExitCode(1);
+				return;
+			}
+			List<ObjectName> destinations = resolveDestinations(aDests);
+			Map<ObjectName, Map<String, Object>> values = fetchValues(destinations, getAttributeNames());
+			if (mode == QueryMode.MULTIGRAPH) {
+				for (QueryMode graphMode : QueryMode.graphModes()) {
+					println(formatMultigraph(graphMode));
+					printValues(graphMode, destinations, values);
+				}
+			} else {
+				printValues(mode, destinations, values);
 			}
-			printDestinationValue(dest);
+		} finally {
+			setDeadline(Deadline.NONE);
 		}
 	}
 
 	/**
-	 * Try to figure out the naming scheme to use.
+	 * Print the values of all graphs in the Prometheus text format. The broker, destination type and destination name
+	 * are labels.
+	 *
+	 * @param aDests
 	 */
-	protected void determineNamingScheme() {
+	public void printMetrics(List<String> aDests) {
+		setDeadline(Deadline.in(fetchTimeout * 1000L));
 		try {
-			ObjectName name = ObjectName.getInstance(NamingScheme.INSTANCE.brokerBean(brokerName));
-
-			if (connection.isRegistered(name)) {
-				namingScheme = NamingScheme.INSTANCE;
+			printMetricHeader("activemq_up", "gauge", "Whether the broker could be reached.");
+			if (!connect()) {
+				printMetricUp(false);
 				return;
 			}
+			printMetricUp(true);
+			List<ObjectName> destinations = resolveDestinations(aDests);
+			Map<ObjectName, Map<String, Object>> values = fetchValues(destinations, getAttributeNames(QueryMode.MULTIGRAPH));
+			for (String attr : getAttributeNames(QueryMode.MULTIGRAPH)) {
+				String[] metric = METRICS.get(attr);
+				printMetricHeader(metric[0], metric[1], metric[2]);
+				printMetricSamples(attr, destinations, values);
+			}
+		} finally {
+			setDeadline(Deadline.NONE);
+		}
+	}
 
-			name = ObjectName.getInstance(NamingScheme58.INSTANCE.brokerBean(brokerName));
-			if (connection.isRegistered(name)) {
-				namingScheme = NamingScheme58.INSTANCE;
-				return;
+	/**
+	 * @param aName
+	 * @param aType
+	 * @param aHelp
+	 */
+	protected void printMetricHeader(String aName, String aType, String aHelp) {
+		FieldWriter writer = output.getWriter();
+		writer.print("# HELP ").print(aName).print(' ').println(aHelp);
+		writer.print("# TYPE ").print(aName).print(' ').println(aType);
+	}
+
+	/**
+	 * @param aUp
+	 */
+	protected void printMetricUp(boolean aUp) {
+		FieldWriter writer = output.getWriter();
+		writer.print("activemq_up{broker=\"").print(escapeLabel(brokerLabel != null ? brokerLabel : brokerName)).print("\"} ");
+		writer.print(aUp ? 1 : 0).println();
+	}
+
+	/**
+	 * Print the samples of a single attribute of this broker. Unknown values are left out.
+	 *
+	 * @param aAttr
+	 * @param aDestinations
+	 * @param aValues
+	 */
+	protected void printMetricSamples(String aAttr, List<ObjectName> aDestinations, Map<ObjectName, Map<String, Object>> aValues) {
+		FieldWriter writer = output.getWriter();
+		String name = METRICS.get(aAttr)[0];
+		String broker = escapeLabel(brokerLabel != null ? brokerLabel : brokerName);
+		for (ObjectName dest : aDestinations) {
+			Map<String, Object> destValues = aValues.get(dest);
+			Object value = destValues == null ? null : destValues.get(aAttr);
+			if (!(value instanceof Number)) {
+				continue;
 			}
-		} catch (Exception e) {
-			e.printStackTrace(output.err);
+			Destination info = getCatalog().get(dest);
+			writer.print(name).print("{broker=\"").print(broker);
+			writer.print("\",type=\"").print(info.getType().toLowerCase());
+			writer.print("\",destination=\"").print(escapeLabel(info.getName())).print("\"} ");
+			writer.print((Number) value).println();
+		}
+	}
+
+	/**
+	 * @param aValue
+	 * @return The value escaped for use as a Prometheus label value
+	 */
+	protected static String escapeLabel(String aValue) {
+		if (aValue.indexOf('\\') == -1 && aValue.indexOf('"') == -1 && aValue.indexOf('\n') == -1) {
+			return aValue;
 		}
+		return aValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
 	}
 
 	/**
-	 * Expand regular expressions in the destination
+	 * Print the values of all graphs in the Graphite plaintext format: <code>prefix.broker.type.destination.attribute
+	 * value timestamp</code>. Nothing is printed when the broker cannot be reached.
 	 *
 	 * @param aDests
-	 * @return
+	 * @param aPrefix
+	 * @param aTimestamp
+	 *            seconds since the epoch
 	 */
-	protected List<String> expandDestinations(List<String> aDests) {
-		List<String> result = new ArrayList<String>();
-
-		Map<String, Set<String>> knownDests = null;
-
-		for (String dest : aDests) {
-			if (dest.startsWith("+")) {
-				// expand the regular expression
-				dest = dest.substring(1);
-				boolean matchMode = true;
-				// invert selection
-				if (dest.startsWith("!")) {
-					dest = dest.substring(1);
-					matchMode = false;
+	public void printGraphite(List<String> aDests, String aPrefix, long aTimestamp) {
+		setDeadline(Deadline.in(fetchTimeout * 1000L));
+		try {
+			if (!connect()) {
+				return;
+			}
+			List<ObjectName> destinations = resolveDestinations(aDests);
+			Map<ObjectName, Map<String, Object>> values = fetchValues(destinations, getAttributeNames(QueryMode.MULTIGRAPH));
+			printGraphiteSamples(aPrefix, aTimestamp, destinations, values);
+		} finally {
+			setDeadline(Deadline.NONE);
+		}
+	}
+
+	/**
+	 * Print the samples of this broker in the Graphite plaintext format. Unknown values are left out.
+	 *
+	 * @param aPrefix
+	 * @param aTimestamp
+	 * @param aDestinations
+	 * @param aValues
+	 */
+	protected void printGraphiteSamples(String aPrefix, long aTimestamp, List<ObjectName> aDestinations, Map<ObjectName, Map<String, Object>> aValues) {
+		FieldWriter writer = output.getWriter();
+		String broker = escapePath(brokerLabel != null ? brokerLabel : brokerName);
+		for (ObjectName dest : aDestinations) {
+			Map<String, Object> destValues = aValues.get(dest);
+			if (destValues == null) {
+				continue;
+			}
+			Destination info = getCatalog().get(dest);
+			String path = aPrefix + broker + "." + info.getType().toLowerCase() + "." + escapePath(info.getName()) + ".";
+			for (String attr : getAttributeNames(QueryMode.MULTIGRAPH)) {
+				Object value = destValues.get(attr);
+				if (value instanceof Number) {
+					writer.print(path).print(attr).print(' ').print((Number) value).print(' ').print(aTimestamp).println();
 				}
-				String type = "queue";
-				if (dest.toLowerCase().startsWith("queue:")) {
-					dest = dest.substring("queue:".length());
-				} else if (dest.toLowerCase().startsWith("topic:")) {
-					dest = dest.substring("topic:".length());
-					type = "topic";
+			}
+		}
+	}
+
+	/**
+	 * @param aValue
+	 * @return The value with everything but letters, digits, dashes and underscores replaced, for use as a single
+	 *         Graphite path element
+	 */
+	protected static String escapePath(String aValue) {
+		return aValue.replaceAll("[^A-Za-z0-9_\\-]", "_");
+	}
+
+	/**
+	 * Print the values of a single graph
+	 *
+	 * @param aMode
+	 * @param aDestinations
+	 * @param aValues
+	 *            The values per destination, as returned by {@link #fetchValues(List, String[])}
+	 */
+	protected void printValues(QueryMode aMode, List<ObjectName> aDestinations, Map<ObjectName, Map<String, Object>> aValues) {
+		if (aMode == QueryMode.RATES) {
+			printRates(aDestinations, aValues);
+			return;
+		}
+		if (aMode == QueryMode.TOP) {
+			printTop(aDestinations, aValues);
+			return;
+		}
+		String[] attributes = getAttributeNames(aMode);
+		if (isGrouped(aMode)) {
+			Map<ObjectName, List<ObjectName>> groups = groupDestinations(aDestinations);
+			aValues = sumGroups(groups, aValues, attributes);
+			aDestinations = new ArrayList<ObjectName>(groups.keySet());
+		}
+		if (aMode == QueryMode.RESOURCES) {
+			Map<String, Object> brokerValues = aValues.get(getBrokerObjectName());
+			for (String attr : BROKER_USAGE) {
+				Object value = brokerValues == null ? null : brokerValues.get(attr);
+				printBrokerValue(attr, value instanceof Number ? (Number) value : null);
+			}
+			attributes = DESTINATION_USAGE;
+		}
+		for (ObjectName dest : aDestinations) {
+			Map<String, Object> destValues = aValues.get(dest);
+			for (String attr : attributes) {
+				Object value = null;
+				if (destValues != null) {
+					value = destValues.get(attr);
 				}
-				if (knownDests == null) {
-					knownDests = getDestinations();
+				if (value instanceof Number) {
+					printValue(dest, attr, (Number) value);
+				} else {
+					if (value != null) {
+						output.err.println(String.format("Returned value is not a number: %s = %s", attr, value));
+					}
+					printValue(dest, attr, null);
 				}
-				Set<String> candidates = knownDests.get(type);
-				if (candidates == null) {
+			}
+		}
+	}
+
+	/**
+	 * Print the rates since the previous run, kept in a {@link RateState}. A rate is unknown for new destinations, and
+	 * when its counter decreased because the broker was restarted or the statistics were reset.
+	 *
+	 * @param aDestinations
+	 * @param aValues
+	 */
+	protected void printRates(List<ObjectName> aDestinations, Map<ObjectName, Map<String, Object>> aValues) {
+		RateState state = null;
+		if (pluginState.isAvailable()) {
+			state = new RateState(pluginState.getFile(getRatesStateName()));
+			try {
+				state.open();
+			} catch (IOException e) {
+				output.err.println("Unable to open the rate state");
+				e.printStackTrace(output.err);
+				state.close();
+				state = null;
+			}
+		} else {
+			output.err.println("No plugin state directory, rates cannot be computed");
+		}
+		long now = System.currentTimeMillis();
+		long[] current = new long[RateState.VALUES];
+		long[] previous = new long[RateState.VALUES];
+		try {
+			for (ObjectName dest : aDestinations) {
+				Double enqueueRate = null;
+				Double dequeueRate = null;
+				Double growth = null;
+				Double ratio = null;
+				if (state != null && readCounters(aValues.get(dest), current)) {
+					Destination info = getCatalog().get(dest);
+					long previousTime;
+					try {
+						previousTime = state.update(info.getType() + ":" + info.getName(), now, current, previous);
+					} catch (IOException e) {
+						output.err.println("Unable to update the rate state");
+						e.printStackTrace(output.err);
+						state.close();
+						state = null;
+						previousTime = -1;
+					}
+					double seconds = (now - previousTime) / 1000.0;
+					if (previousTime >= 0 && seconds > 0) {
+						long enqueued = current[0] - previous[0];
+						long dequeued = current[1] - previous[1];
+						if (enqueued >= 0) {
+							enqueueRate = round(enqueued / seconds);
+						}
+						if (dequeued >= 0) {
+							dequeueRate = round(dequeued / seconds);
+						}
+						growth = round((current[2] - previous[2]) / seconds);
+						if (enqueued > 0 && dequeued >= 0) {
+							ratio = round(dequeued / (double) enqueued);
+						}
+					}
+				}
+				printValue(dest, "EnqueueRate", enqueueRate);
+				printValue(dest, "DequeueRate", dequeueRate);
+				printValue(dest, "BacklogGrowth", growth);
+				printValue(dest, "DequeueRatio", ratio);
+			}
+		} finally {
+			if (state != null) {
+				state.close();
+			}
+		}
+	}
+
+	/**
+	 * @param aMode
+	 * @return True when the destinations are summed per group in the graph, see {@link DestinationSelector}
+	 */
+	protected boolean isGrouped(QueryMode aMode) {
+		return selector != null && selector.hasGroups() && QueryMode.graphModes().contains(aMode);
+	}
+
+	/**
+	 * Replace the destinations which are part of a group by the group. A group is represented by an object name with
+	 * the destination type followed by "group" as type, which is never registered with the broker. The group name is
+	 * quoted, as the captured text can contain characters which are not allowed in an object name value.
+	 *
+	 * @param aDestinations
+	 * @return The members by destination or group, in the order of the destinations.
+	 */
+	protected Map<ObjectName, List<ObjectName>> groupDestinations(List<ObjectName> aDestinations) {
+		Map<ObjectName, List<ObjectName>> result = new LinkedHashMap<ObjectName, List<ObjectName>>();
+		for (ObjectName dest : aDestinations) {
+			String type = dest.getKeyProperty(namingScheme.destinationType());
+			String group = selector.getGroup(type, dest.getKeyProperty(namingScheme.destinationName()));
+			ObjectName name = dest;
+			if (group != null) {
+				try {
+					name = ObjectName.getInstance(namingScheme.destinationBean(brokerName, type + " group", ObjectName.quote(group)));
+				} catch (MalformedObjectNameException e) {
+					output.err.println("Invalid group name: " + group);
+				}
+			}
+			List<ObjectName> members = result.get(name);
+			if (members == null) {
+				members = new ArrayList<ObjectName>();
+				result.put(name, members);
+			}
+			members.add(dest);
+		}
+		getCatalog().addAll(result.keySet());
+		storeCatalog();
+		return result;
+	}
+
+	/**
+	 * Sum the values of the group members. A group only has a value for an attribute when at least one member has.
+	 *
+	 * @param aGroups
+	 *            as returned by {@link #groupDestinations(List)}
+	 * @param aValues
+	 * @param aAttributes
+	 * @return The values by destination and group
+	 */
+	protected Map<ObjectName, Map<String, Object>> sumGroups(Map<ObjectName, List<ObjectName>> aGroups, Map<ObjectName, Map<String, Object>> aValues, String[] aAttributes) {
+		Map<ObjectName, Map<String, Object>> result = new HashMap<ObjectName, Map<String, Object>>(aValues);
+		for (Entry<ObjectName, List<ObjectName>> entry : aGroups.entrySet()) {
+			List<ObjectName> members = entry.getValue();
+			if (members.size() == 1 && members.get(0).equals(entry.getKey())) {
+				continue;
+			}
+			long[] sums = new long[aAttributes.length];
+			boolean[] known = new boolean[aAttributes.length];
+			for (ObjectName member : members) {
+				Map<String, Object> memberValues = aValues.get(member);
+				if (memberValues == null) {
 					continue;
 				}
-				Pattern pat = Pattern.compile(dest);
-				for (String can : candidates) {
-					if (pat.matcher(can).matches() == matchMode) {
-						result.add(String.format("%s:%s", type, can));
+				for (int i = 0; i < aAttributes.length; ++i) {
+					Object value = memberValues.get(aAttributes[i]);
+					if (value instanceof Number) {
+						sums[i] += ((Number) value).longValue();
+						known[i] = true;
 					}
 				}
+			}
+			Map<String, Object> groupValues = new HashMap<String, Object>();
+			for (int i = 0; i < aAttributes.length; ++i) {
+				if (known[i]) {
+					groupValues.put(aAttributes[i], Long.valueOf(sums[i]));
+				}
+			}
+			result.put(entry.getKey(), groupValues);
+		}
+		return result;
+	}
+
+	/**
+	 * Print the destinations with the highest {@link #topAttribute} in ranked fields, followed by the total of the other
+	 * destinations. The destinations are passed through a {@link TopSelection}, so only the top destinations are kept
+	 * and they are never sorted as a whole.
+	 *
+	 * @param aDestinations
+	 * @param aValues
+	 */
+	protected void printTop(List<ObjectName> aDestinations, Map<ObjectName, Map<String, Object>> aValues) {
+		TopSelection selection = topSelection;
+		topSelection = null;
+		if (selection == null) {
+			selection = new TopSelection(topSize);
+			offerTop(selection, aValues);
+		}
+		FieldWriter writer = output.getWriter();
+		TopSelection.Entry[] top = selection.getTop();
+		for (int i = 0; i < topSize; ++i) {
+			String name = formatTopField(String.valueOf(i + 1));
+			if (i < top.length) {
+				ObjectName dest = top[i].getName();
+				writer.print(name).print(".value ").print(formatTopValue(top[i].getValue(), selection.isIntegral())).println();
+				// not through the catalog, which would keep every destination that was ever ranked
+				writer.print(name).print(".extinfo ").print(dest.getKeyProperty(namingScheme.destinationType())).print(": ")
+						.println(dest.getKeyProperty(namingScheme.destinationName()));
 			} else {
-				result.add(dest);
+				writer.print(name).println(".value U");
+			}
+		}
+		writer.print(formatTopField("other")).print(".value ").print(formatTopValue(selection.getOther(), selection.isIntegral())).println();
+	}
+
+	/**
+	 * @param aSelection
+	 * @param aValues
+	 */
+	protected void offerTop(TopSelection aSelection, Map<ObjectName, Map<String, Object>> aValues) {
+		for (Entry<ObjectName, Map<String, Object>> entry : aValues.entrySet()) {
+			Object value = entry.getValue().get(topAttribute);
+			if (value instanceof Number) {
+				aSelection.offer(entry.getKey(), (Number) value);
+			} else if (value != null) {
+				output.err.println(String.format("Returned value is not a number: %s = %s", topAttribute, value));
 			}
 		}
+	}
+
+	/**
+	 * Read the {@link #topAttribute} of the destinations in chunks of {@link #TOP_CHUNK}, every chunk is passed through
+	 * a {@link TopSelection} and dropped before the next one is read. The destinations are not filtered up front, as
+	 * that lists all destinations of a type, destinations which do not exist are simply not returned.
+	 *
+	 * @param aDests
+	 * @param aAttributes
+	 * @return The values of the selected destinations, the selection is kept for {@link #printTop(List, Map)}
+	 */
+	protected Map<ObjectName, Map<String, Object>> fetchTop(List<ObjectName> aDests, String[] aAttributes) {
+		TopSelection selection = new TopSelection(topSize);
+		for (int i = 0; i < aDests.size() && !deadline.isExpired(); i += TOP_CHUNK) {
+			List<ObjectName> chunk = aDests.subList(i, Math.min(i + TOP_CHUNK, aDests.size()));
+			if (transport.isBulkRead()) {
+				try {
+					offerTop(selection, transport.readAttributes(chunk, aAttributes));
+				} catch (Exception e) {
+					e.printStackTrace(output.err);
+				}
+			} else {
+				offerTop(selection, fetchStriped(chunk, aAttributes));
+			}
+		}
+		if (deadline.isExpired()) {
+			output.err.println("Fetch timeout reached, not all destinations were ranked");
+		}
+		topSelection = selection;
+		Map<ObjectName, Map<String, Object>> result = new HashMap<ObjectName, Map<String, Object>>();
+		for (TopSelection.Entry entry : selection.getTop()) {
+			Map<String, Object> values = new HashMap<String, Object>();
+			values.put(topAttribute, Double.valueOf(entry.getValue()));
+			result.put(entry.getName(), values);
+		}
 		return result;
 	}
 
-	protected String formatDestination(ObjectName aDest) {
-		return String.format("%s: %s", aDest.getKeyProperty(namingScheme.destinationType()), aDest.getKeyProperty(namingScheme.destinationName()));
+	/**
+	 * @param aValue
+	 * @param aIntegral
+	 *            true when the attribute is an integer
+	 * @return The value as printed in the {@link QueryMode#TOP} graph
+	 */
+	protected static Number formatTopValue(double aValue, boolean aIntegral) {
+		if (aIntegral) {
+			return Long.valueOf((long) aValue);
+		}
+		return round(aValue);
+	}
+
+	/**
+	 * @param aSlot
+	 * @return The field name of a rank of the {@link QueryMode#TOP} graph
+	 */
+	protected String formatTopField(String aSlot) {
+		String field = "Top_" + aSlot;
+		if (brokerLabel != null) {
+			field = DestinationCatalog.sanitize(brokerLabel) + "_" + field;
+		}
+		return field;
+	}
+
+	/**
+	 * @param aValues
+	 * @param aCounters
+	 *            receives the EnqueueCount, DequeueCount and QueueSize
+	 * @return False when a value is missing
+	 */
+	protected static boolean readCounters(Map<String, Object> aValues, long[] aCounters) {
+		if (aValues == null) {
+			return false;
+		}
+		String[] attrs = { "EnqueueCount", "DequeueCount", "QueueSize" };
+		for (int i = 0; i < attrs.length; ++i) {
+			Object value = aValues.get(attrs[i]);
+			if (!(value instanceof Number)) {
+				return false;
+			}
+			aCounters[i] = ((Number) value).longValue();
+		}
+		return true;
+	}
+
+	/**
+	 * @param aValue
+	 * @return The value rounded to three decimals
+	 */
+	protected static Double round(double aValue) {
+		return Math.round(aValue * 1000) / 1000.0;
+	}
+
+	/**
+	 * @return The name of the plugin state containing the counters for the rates
+	 */
+	protected String getRatesStateName() {
+		return getStateName() + "_rates";
+	}
+
+	/**
+	 * Try to figure out the naming scheme to use.
+	 */
+	protected void determineNamingScheme() {
+		Map<String, NamingScheme> brokers = null;
+		if (!redetect) {
+			brokers = loadDetectedBrokers();
+			if (brokers != null && !isBrokerRegistered(brokers)) {
+				// the broker was removed or upgraded to another naming scheme
+				brokers = null;
+			}
+		}
+		redetect = false;
+		if (brokers == null || brokerNameConfigured && !brokers.containsKey(brokerName)) {
+			try {
+				brokers = detectBrokers();
+			} catch (Exception e) {
+				e.printStackTrace(output.err);
+				return;
+			}
+			if (brokers.isEmpty()) {
+				// the broker may still be starting, detect again on the next run
+				pluginState.delete(getBrokersStateName());
+			} else {
+				storeDetectedBrokers(brokers);
+			}
+		}
+		detectedBrokers = brokers;
+
+		if (!brokers.containsKey(brokerName)) {
+			if (brokerNameConfigured || brokers.isEmpty()) {
+				output.err.println(String.format("Broker '%s' not found. Available brokers: %s", brokerName, brokers.keySet()));
+				return;
+			}
+			brokerName = brokers.keySet().iterator().next();
+			if (brokers.size() > 1) {
+				output.err.println(String.format("Multiple brokers found %s, using '%s'. Set BROKER_NAME to select a broker.", brokers.keySet(), brokerName));
+			}
+		}
+		namingScheme = brokers.get(brokerName);
+	}
+
+	/**
+	 * @param aBrokers
+	 *            the brokers detected in an earlier run
+	 * @return True when the broker that would be selected is still registered under the same naming scheme
+	 */
+	protected boolean isBrokerRegistered(Map<String, NamingScheme> aBrokers) {
+		String name = brokerName;
+		if (!aBrokers.containsKey(name)) {
+			if (brokerNameConfigured) {
+				return false;
+			}
+			name = aBrokers.keySet().iterator().next();
+		}
+		try {
+			return transport.isRegistered(ObjectName.getInstance(aBrokers.get(name).brokerBean(name)));
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Determine the naming scheme from the brokers detected in an earlier run, without contacting the broker.
+	 *
+	 * @return True when the naming scheme is known
+	 */
+	protected boolean loadNamingScheme() {
+		if (namingScheme != null) {
+			return true;
+		}
+		Map<String, NamingScheme> brokers = loadDetectedBrokers();
+		if (brokers == null || !brokers.containsKey(brokerName)) {
+			return false;
+		}
+		detectedBrokers = brokers;
+		namingScheme = brokers.get(brokerName);
+		return true;
+	}
+
+	/**
+	 * Find all brokers registered with the MBean server, and the naming scheme they use, with a single query. The
+	 * broker beans of all naming schemes are selected on the server, so no destination beans are transferred.
+	 *
+	 * @return The naming scheme by broker name
+	 * @throws Exception
+	 */
+	protected Map<String, NamingScheme> detectBrokers() throws Exception {
+		ObjectName[] patterns = new ObjectName[NAMING_SCHEMES.length];
+		for (int i = 0; i < NAMING_SCHEMES.length; ++i) {
+			patterns[i] = ObjectName.getInstance(NAMING_SCHEMES[i].brokerBean("*"));
+		}
+
+		Map<String, NamingScheme> result = new TreeMap<String, NamingScheme>();
+		for (ObjectName name : transport.queryNames(patterns)) {
+			for (int i = 0; i < NAMING_SCHEMES.length; ++i) {
+				if (patterns[i].apply(name)) {
+					result.put(name.getKeyProperty(NAMING_SCHEMES[i].brokerName()), NAMING_SCHEMES[i]);
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return The brokers remembered from an earlier detection, or null when there are none or when they are older
+	 *         than {@link #discoveryMaxAge}. An empty detection is never remembered.
+	 */
+	protected Map<String, NamingScheme> loadDetectedBrokers() {
+		try {
+			Properties props = pluginState.load(getBrokersStateName());
+			if (props == null) {
+				return null;
+			}
+			long detectedAt = Long.parseLong(props.getProperty("detectedAt", "0"));
+			if (System.currentTimeMillis() - detectedAt >= discoveryMaxAge * 1000L) {
+				return null;
+			}
+			Map<String, NamingScheme> result = new TreeMap<String, NamingScheme>();
+			for (String key : props.stringPropertyNames()) {
+				if (!key.startsWith("broker.")) {
+					continue;
+				}
+				for (NamingScheme scheme : NAMING_SCHEMES) {
+					if (scheme.getClass().getSimpleName().equals(props.getProperty(key))) {
+						result.put(key.substring("broker.".length()), scheme);
+					}
+				}
+			}
+			if (result.isEmpty()) {
+				return null;
+			}
+			return result;
+		} catch (Exception e) {
+			output.err.println("Unable to read the detected brokers");
+			e.printStackTrace(output.err);
+			return null;
+		}
+	}
+
+	/**
+	 * Remember the detected brokers in the plugin state
+	 *
+	 * @param aBrokers
+	 */
+	protected void storeDetectedBrokers(Map<String, NamingScheme> aBrokers) {
+		Properties props = new Properties();
+		props.setProperty("detectedAt", String.valueOf(System.currentTimeMillis()));
+		for (Entry<String, NamingScheme> entry : aBrokers.entrySet()) {
+			props.setProperty("broker." + entry.getKey(), entry.getValue().getClass().getSimpleName());
+		}
+		try {
+			pluginState.store(getBrokersStateName(), props);
+		} catch (Exception e) {
+			output.err.println("Unable to write the detected brokers");
+			e.printStackTrace(output.err);
+		}
+	}
+
+	/**
+	 * @return The name of the plugin state containing the detected brokers
+	 */
+	protected String getBrokersStateName() {
+		return getStateName() + "_brokers";
+	}
+
+	/**
+	 * Expand the destinations and convert them to object names. Invalid destinations are reported and skipped.
+	 *
+	 * @param aDests
+	 * @return
+	 */
+	protected List<ObjectName> resolveDestinations(List<String> aDests) {
+		List<ObjectName> destinations = new ArrayList<ObjectName>();
+		for (String destStr : expandDestinations(aDests)) {
+			try {
+				destinations.add(getObjectName(destStr));
+			} catch (IllegalArgumentException e) {
+				output.err.println("Invalid destination: " + destStr);
+				e.printStackTrace(output.err);
+				continue;
+			}
+		}
+		if (mode != QueryMode.TOP) {
+			// the top graph has fields per rank, not per destination
+			getCatalog().addAll(destinations);
+			storeCatalog();
+		}
+		return destinations;
+	}
+
+	/**
+	 * Expand the destination selectors, see {@link DestinationSelector}. When all patterns can be expressed as object
+	 * name patterns, and the discovery cache is not current, the patterns are matched by the broker. Otherwise they
+	 * are matched against all known destinations.
+	 *
+	 * @param aDests
+	 * @return
+	 */
+	protected List<String> expandDestinations(List<String> aDests) {
+		if (selector == null || !selector.getSelectors().equals(aDests)) {
+			selector = new DestinationSelector(aDests);
+		}
+		if (!selector.hasPatterns()) {
+			return selector.getLiterals();
+		}
+
+		Map<String, List<String>> pushDown = selector.getPushDownPatterns();
+		if (pushDown != null && !isDiscoveryCurrent()) {
+			Map<String, Set<String>> candidates = new HashMap<String, Set<String>>();
+			for (Entry<String, List<String>> entry : pushDown.entrySet()) {
+				Set<String> names = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+				for (String pattern : entry.getValue()) {
+					names.addAll(queryDestinations(entry.getKey(), pattern));
+				}
+				candidates.put(entry.getKey(), names);
+			}
+			return selector.select(candidates);
+		}
+		return selector.select(getKnownDestinations());
+	}
+
+	protected String formatDestination(ObjectName aDest) {
+		return getCatalog().get(aDest).getLabel();
+	}
+
+	/**
+	 * @param aDest
+	 * @param aAttr
+	 * @return
+	 */
+	protected String formatGraphName(ObjectName aDest, String aAttr) {
+		return getCatalog().get(aDest).getFieldName(aAttr);
+	}
+
+	/**
+	 * @return The destination catalog for the current naming scheme, with the field names assigned in earlier runs.
+	 */
+	protected DestinationCatalog getCatalog() {
+		if (catalog == null || catalog.getNamingScheme() != namingScheme) {
+			catalog = new DestinationCatalog(namingScheme, brokerLabel);
+			try {
+				Properties props = pluginState.load(getCatalogStateName());
+				if (props != null) {
+					catalog.load(props);
+				}
+			} catch (Exception e) {
+				output.err.println("Unable to read the field names");
+				e.printStackTrace(output.err);
+			}
+		}
+		return catalog;
+	}
+
+	/**
+	 * Store the field names assigned to new destinations
+	 */
+	protected void storeCatalog() {
+		if (catalog == null || !catalog.isModified()) {
+			return;
+		}
+		try {
+			pluginState.store(getCatalogStateName(), catalog.toProperties());
+		} catch (Exception e) {
+			output.err.println("Unable to write the field names");
+			e.printStackTrace(output.err);
+		}
+	}
+
+	/**
+	 * @return The name of the plugin state containing the assigned field names
+	 */
+	protected String getCatalogStateName() {
+		return getStateName() + "_fields";
+	}
+
+	/**
+	 * @param aMode
+	 * @return The name of the graph within a multigraph
+	 */
+	protected String formatMultigraph(QueryMode aMode) {
+		return "multigraph activemq_" + aMode.toString().toLowerCase();
 	}
 
 	/**
-	 * @param aDest
-	 * @param aAttr
+	 * Get the attribute names for the current mode
+	 *
 	 * @return
 	 */
-	protected String formatGraphName(ObjectName aDest, String aAttr) {
-		return String.format("%s_%s_%s", aDest.getKeyProperty(namingScheme.destinationType()), aDest.getKeyProperty(namingScheme.destinationName()).replaceAll("[^a-zA-Z0-9]+", "_"), aAttr);
+	protected String[] getAttributeNames() {
+		return getAttributeNames(mode);
 	}
 
 	/**
 	 * Get the attribute names for a given mode
 	 *
-	 * @param attributes
+	 * @param aMode
 	 * @return
 	 */
-	protected String[] getAttributeNames() {
-		switch (mode) {
+	protected String[] getAttributeNames(QueryMode aMode) {
+		switch (aMode) {
 			case SIZE:
 				return new String[] { "QueueSize" };
 			case SUBSCRIBERS:
 				return new String[] { "ConsumerCount", "ProducerCount" };
 			case TRAFFIC:
 				return new String[] { "EnqueueCount", "DequeueCount" };
+			case RATES:
+				return new String[] { "EnqueueCount", "DequeueCount", "QueueSize" };
+			case RESOURCES:
+				// read from the broker and the destinations, attributes a bean does not have are left out
+				return new String[] { "MemoryPercentUsage", "MemoryUsageByteCount", "StorePercentUsage", "TempPercentUsage" };
+			case LATENCY:
+				return new String[] { "AverageEnqueueTime", "MaxEnqueueTime", "InFlightCount", "DispatchCount", "ExpiredCount" };
+			case TOP:
+				return new String[] { topAttribute };
+			case MULTIGRAPH:
+				Set<String> attrs = new LinkedHashSet<String>();
+				for (QueryMode graphMode : QueryMode.graphModes()) {
+					attrs.addAll(Arrays.asList(getAttributeNames(graphMode)));
+				}
+				return attrs.toArray(new String[attrs.size()]);
 			default:
-				throw new IllegalStateException("Unknown mode: " + mode);
+				throw new IllegalStateException("Unknown mode: " + aMode);
 		}
 	}
 
@@ -312,35 +1528,135 @@ public class AmqJmxQuery extends JmxConnection {
 	 * @return A all known destinations
 	 */
 	protected Map<String, Set<String>> getDestinations() {
+		try {
+			return readDestinations();
+		} catch (Exception e) {
+			e.printStackTrace(output.err);
+		}
 		Map<String, Set<String>> result = new HashMap<String, Set<String>>();
 		result.put("queue", new TreeSet<String>(String.CASE_INSENSITIVE_ORDER));
 		result.put("topic", new TreeSet<String>(String.CASE_INSENSITIVE_ORDER));
+		return result;
+	}
 
+	/**
+	 * Find the destinations matching an object name pattern on the server
+	 *
+	 * @param aType
+	 *            queue or topic
+	 * @param aPattern
+	 *            the destination name, which may contain the * and ? wildcards
+	 * @return The matching destination names
+	 */
+	protected Set<String> queryDestinations(String aType, String aPattern) {
+		Set<String> result = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+		String type = "topic".equalsIgnoreCase(aType) ? "Topic" : "Queue";
 		try {
-			ObjectName name = ObjectName.getInstance(namingScheme.brokerBean(brokerName));
-
-			AttributeList values = connection.getAttributes(name, new String[] { "Queues", "Topics" });
-			for (Attribute attr : values.asList()) {
-				// should return an array of object names
-				if (attr.getValue() instanceof ObjectName[]) {
-					for (ObjectName objName : (ObjectName[]) attr.getValue()) {
-						String type = objName.getKeyProperty(namingScheme.destinationType());
-						String destination = objName.getKeyProperty(namingScheme.destinationName());
-						if ("queue".equalsIgnoreCase(type) || "topic".equalsIgnoreCase(type)) {
-							Set<String> dests = result.get(type.toLowerCase());
-							if (dests == null) {
-								dests = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
-								result.put(type, dests);
-							}
-							dests.add(destination);
-						}
-					}
-				}
+			ObjectName pattern = ObjectName.getInstance(namingScheme.destinationBean(brokerName, type, aPattern));
+			for (ObjectName name : transport.queryNames(pattern)) {
+				result.add(name.getKeyProperty(namingScheme.destinationName()));
+			}
+		} catch (Exception e) {
+			output.err.println("Unable to query destinations: " + aPattern);
+			e.printStackTrace(output.err);
+		}
+		return result;
+	}
+
+	/**
+	 * @return True when the discovery cache can be used without contacting the broker
+	 */
+	protected boolean isDiscoveryCurrent() {
+		DiscoveryCache cache = getDiscoveryCache();
+		if (cache == null || !cache.isLoaded()) {
+			return false;
+		}
+		return System.currentTimeMillis() - cache.getLoadedAt() < Math.min(discoveryTtl, discoveryMaxAge) * 1000L;
+	}
+
+	/**
+	 * @return The discovery cache, loaded from the plugin state on first use. Null when there is no plugin state.
+	 */
+	protected DiscoveryCache getDiscoveryCache() {
+		if (discoveryCache == null && pluginState.isAvailable()) {
+			discoveryCache = new DiscoveryCache(pluginState, getStateName() + "_destinations");
+			try {
+				discoveryCache.load();
+			} catch (Exception e) {
+				output.err.println("Unable to read the destination cache");
+				e.printStackTrace(output.err);
+			}
+		}
+		return discoveryCache;
+	}
+
+	/**
+	 * Get the known destinations through the discovery cache. The cached destinations are used as is within the
+	 * {@link #discoveryTtl}, after that they are read again. The number of registered MBeans is not a usable check
+	 * whether they changed, on a busy broker it changes with every connection, consumer and producer. Without a plugin
+	 * state directory the destinations are always read from the broker.
+	 *
+	 * @return A all known destinations
+	 */
+	protected Map<String, Set<String>> getKnownDestinations() {
+		if (getDiscoveryCache() == null) {
+			return getDestinations();
+		}
+
+		if (isDiscoveryCurrent()) {
+			return discoveryCache.getDestinations();
+		}
+
+		try {
+			discoveryCache.update(readDestinations(), System.currentTimeMillis());
+		} catch (Exception e) {
+			e.printStackTrace(output.err);
+			if (discoveryCache.isLoaded()) {
+				output.err.println("Using previously discovered destinations");
+				return discoveryCache.getDestinations();
 			}
+			return getDestinations();
+		}
+		try {
+			discoveryCache.store();
 		} catch (Exception e) {
+			output.err.println("Unable to write the destination cache");
 			e.printStackTrace(output.err);
 		}
+		return discoveryCache.getDestinations();
+	}
+
+	/**
+	 * Read all known destinations from the broker.
+	 *
+	 * @return
+	 * @throws Exception
+	 */
+	protected Map<String, Set<String>> readDestinations() throws Exception {
+		Map<String, Set<String>> result = new HashMap<String, Set<String>>();
+		result.put("queue", new TreeSet<String>(String.CASE_INSENSITIVE_ORDER));
+		result.put("topic", new TreeSet<String>(String.CASE_INSENSITIVE_ORDER));
 
+		ObjectName name = ObjectName.getInstance(namingScheme.brokerBean(brokerName));
+
+		Map<String, Object> values = transport.getAttributes(name, new String[] { "Queues", "Topics" });
+		for (Object value : values.values()) {
+			// should return an array of object names
+			if (value instanceof ObjectName[]) {
+				for (ObjectName objName : (ObjectName[]) value) {
+					String type = objName.getKeyProperty(namingScheme.destinationType());
+					String destination = objName.getKeyProperty(namingScheme.destinationName());
+					if ("queue".equalsIgnoreCase(type) || "topic".equalsIgnoreCase(type)) {
+						Set<String> dests = result.get(type.toLowerCase());
+						if (dests == null) {
+							dests = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+							result.put(type, dests);
+						}
+						dests.add(destination);
+					}
+				}
+			}
+		}
 		return result;
 	}
 
@@ -391,30 +1707,78 @@ public class AmqJmxQuery extends JmxConnection {
 		if (env.get("BROKER_NAME") != null) {
 			brokerName = env.get("BROKER_NAME");
 		} else {
-			brokerName = System.getProperty("BROKER_NAME", brokerName);
+			brokerName = System.getProperty("BROKER_NAME");
+		}
+		brokerNameConfigured = brokerName != null;
+		if (brokerName == null) {
+			brokerName = "localhost";
+		}
+		if (env.get("FETCH_THREADS") != null) {
+			fetchThreads = Integer.parseInt(env.get("FETCH_THREADS"));
+		} else {
+			fetchThreads = Integer.getInteger("FETCH_THREADS", 4);
+		}
+		if (env.get("FETCH_CONNECTIONS") != null) {
+			fetchConnections = Integer.parseInt(env.get("FETCH_CONNECTIONS"));
+		} else {
+			fetchConnections = Integer.getInteger("FETCH_CONNECTIONS", 1);
+		}
+		if (env.get("FETCH_TIMEOUT") != null) {
+			fetchTimeout = Integer.parseInt(env.get("FETCH_TIMEOUT"));
+		} else {
+			fetchTimeout = Integer.getInteger("FETCH_TIMEOUT", 8);
+		}
+		if (env.get("DISCOVERY_TTL") != null) {
+			discoveryTtl = Integer.parseInt(env.get("DISCOVERY_TTL"));
+		} else {
+			discoveryTtl = Integer.getInteger("DISCOVERY_TTL", 3600);
+		}
+		if (env.get("DISCOVERY_MAX_AGE") != null) {
+			discoveryMaxAge = Integer.parseInt(env.get("DISCOVERY_MAX_AGE"));
+		} else {
+			discoveryMaxAge = Integer.getInteger("DISCOVERY_MAX_AGE", 86400);
+		}
+		if (env.get("MUNIN_CAP_DIRTYCONFIG") != null) {
+			dirtyConfig = "1".equals(env.get("MUNIN_CAP_DIRTYCONFIG"));
+		} else {
+			dirtyConfig = "1".equals(System.getProperty("MUNIN_CAP_DIRTYCONFIG"));
+		}
+		if (env.get("SAMPLE_INTERVAL") != null) {
+			sampleInterval = Integer.parseInt(env.get("SAMPLE_INTERVAL"));
+		} else {
+			sampleInterval = Integer.getInteger("SAMPLE_INTERVAL", 0);
+		}
+		if (env.get("TOP_N") != null) {
+			topSize = Integer.parseInt(env.get("TOP_N"));
+		} else {
+			topSize = Integer.getInteger("TOP_N", 20);
+		}
+		if (topSize < 1) {
+			throw new IllegalArgumentException(String.format("TOP_N must be at least 1, not %d", topSize));
+		}
+		if (env.get("TOP_ATTRIBUTE") != null) {
+			topAttribute = env.get("TOP_ATTRIBUTE");
+		} else {
+			topAttribute = System.getProperty("TOP_ATTRIBUTE", "QueueSize");
 		}
+		pluginState = new PluginState();
 	}
 
 	/**
 	 * @param aDestinations
 	 */
 	protected void printConfigSize(List<ObjectName> aDestinations) {
-		println("graph_title Queue Size");
-		println("graph_category ActiveMQ");
-		println("graph_info The number of messages currently waiting on the queue.");
-		println("graph_vlabel Messages");
-
-		String[] attrs = getAttributeNames();
+		String[] attrs = getAttributeNames(QueryMode.SIZE);
 		for (ObjectName dest : aDestinations) {
 			for (String attr : attrs) {
 				println("");
 				String name = formatGraphName(dest, attr);
-				println(name + ".label " + formatDestination(dest));
-				println(name + ".type GAUGE");
-				println(name + ".min 0");
+				printField(name, "label", formatDestination(dest));
+				printField(name, "type", "GAUGE");
+				printField(name, "min", "0");
 				// TODO: make this configurable some way
-				// println(name + ".warning 2");
-				// println(name + ".critical 5");
+				// printField(name, "warning", "2");
+				// printField(name, "critical", "5");
 			}
 		}
 	}
@@ -423,20 +1787,15 @@ public class AmqJmxQuery extends JmxConnection {
 	 * @param aDestinations
 	 */
 	protected void printConfigSubscribers(List<ObjectName> aDestinations) {
-		println("graph_title Subscribers");
-		println("graph_category ActiveMQ");
-		println("graph_info The number of producers and consumers on a destination.");
-		println("graph_vlabel Clients");
-
-		String[] attrs = getAttributeNames();
+		String[] attrs = getAttributeNames(QueryMode.SUBSCRIBERS);
 		for (ObjectName dest : aDestinations) {
 			for (String attr : attrs) {
 				println("");
 				String name = formatGraphName(dest, attr);
 				String attrLabel = attr.substring(0, attr.indexOf("Count"));
-				println(name + ".label " + formatDestination(dest) + " " + attrLabel);
-				println(name + ".type GAUGE");
-				println(name + ".min 0");
+				printField(name, "label", formatDestination(dest), attrLabel);
+				printField(name, "type", "GAUGE");
+				printField(name, "min", "0");
 			}
 		}
 	}
@@ -445,46 +1804,433 @@ public class AmqJmxQuery extends JmxConnection {
 	 * @param aDestinations
 	 */
 	protected void printConfigTraffic(List<ObjectName> aDestinations) {
-		println("graph_title Traffic");
-		println("graph_category ActiveMQ");
-		println("graph_info The number of messages that are written to and read from the destination.");
-		println("graph_vlabel Messages");
-
-		String[] attrs = getAttributeNames();
+		String[] attrs = getAttributeNames(QueryMode.TRAFFIC);
 		for (ObjectName dest : aDestinations) {
 			for (String attr : attrs) {
 				println("");
 				String name = formatGraphName(dest, attr);
 				String attrLabel = attr.substring(0, attr.indexOf("Count"));
-				println(name + ".label " + formatDestination(dest) + " " + attrLabel);
-				println(name + ".type DERIVE");
-				println(name + ".min 0");
+				printField(name, "label", formatDestination(dest), attrLabel);
+				printField(name, "type", "DERIVE");
+				printField(name, "min", "0");
 			}
 		}
 	}
 
 	/**
-	 * Print the values for a givend destination
-	 *
-	 * @param aDest
+	 * @param aDestinations
+	 */
+	protected void printConfigRates(List<ObjectName> aDestinations) {
+		for (ObjectName dest : aDestinations) {
+			println("");
+			String name = formatGraphName(dest, "EnqueueRate");
+			printField(name, "label", formatDestination(dest), "Enqueue");
+			printField(name, "type", "GAUGE");
+			printField(name, "min", "0");
+			println("");
+			name = formatGraphName(dest, "DequeueRate");
+			printField(name, "label", formatDestination(dest), "Dequeue");
+			printField(name, "type", "GAUGE");
+			printField(name, "min", "0");
+			println("");
+			name = formatGraphName(dest, "BacklogGrowth");
+			printField(name, "label", formatDestination(dest), "Backlog growth");
+			printField(name, "type", "GAUGE");
+			println("");
+			name = formatGraphName(dest, "DequeueRatio");
+			printField(name, "label", formatDestination(dest), "Dequeue ratio");
+			printField(name, "info", "Messages dequeued per message enqueued");
+			printField(name, "type", "GAUGE");
+			printField(name, "min", "0");
+		}
+	}
+
+	/**
+	 * The fields of the {@link QueryMode#TOP} graph do not depend on the destinations, so the RRD files stay the same
+	 * when destinations come and go.
+	 */
+	protected void printConfigTop() {
+		String prefix = brokerLabel != null ? brokerLabel + " " : "";
+		for (int i = 1; i <= topSize; ++i) {
+			println("");
+			String name = formatTopField(String.valueOf(i));
+			printField(name, "label", prefix + "#" + i);
+			printField(name, "type", "GAUGE");
+			printField(name, "min", "0");
+		}
+		println("");
+		String name = formatTopField("other");
+		printField(name, "label", prefix + "Other");
+		printField(name, "info", "The total of all other destinations");
+		printField(name, "type", "GAUGE");
+		printField(name, "min", "0");
+	}
+
+	/**
+	 * @param aDestinations
+	 */
+	protected void printConfigLatency(List<ObjectName> aDestinations) {
+		for (ObjectName dest : aDestinations) {
+			println("");
+			String name = formatGraphName(dest, "AverageEnqueueTime");
+			printField(name, "label", formatDestination(dest), "Average time");
+			printField(name, "info", "Average time in milliseconds a message was on the destination");
+			printField(name, "type", "GAUGE");
+			printField(name, "min", "0");
+			println("");
+			name = formatGraphName(dest, "MaxEnqueueTime");
+			printField(name, "label", formatDestination(dest), "Max time");
+			printField(name, "info", "Maximum time in milliseconds a message was on the destination");
+			printField(name, "type", "GAUGE");
+			printField(name, "min", "0");
+			println("");
+			name = formatGraphName(dest, "InFlightCount");
+			printField(name, "label", formatDestination(dest), "InFlight");
+			printField(name, "info", "Messages dispatched to consumers which are not acknowledged");
+			printField(name, "type", "GAUGE");
+			printField(name, "min", "0");
+			println("");
+			name = formatGraphName(dest, "DispatchCount");
+			printField(name, "label", formatDestination(dest), "Dispatch");
+			printField(name, "type", "DERIVE");
+			printField(name, "min", "0");
+			println("");
+			name = formatGraphName(dest, "ExpiredCount");
+			printField(name, "label", formatDestination(dest), "Expired");
+			printField(name, "type", "DERIVE");
+			printField(name, "min", "0");
+		}
+	}
+
+	/**
+	 * @param aDestinations
+	 */
+	protected void printConfigResources(List<ObjectName> aDestinations) {
+		String prefix = brokerLabel != null ? brokerLabel + " " : "";
+		for (String attr : BROKER_USAGE) {
+			println("");
+			String name = formatBrokerField(attr);
+			printField(name, "label", prefix + "Broker " + attr.substring(0, attr.indexOf("PercentUsage")).toLowerCase());
+			printField(name, "type", "GAUGE");
+			printField(name, "min", "0");
+		}
+		for (ObjectName dest : aDestinations) {
+			println("");
+			String name = formatGraphName(dest, "MemoryPercentUsage");
+			printField(name, "label", formatDestination(dest), "memory");
+			printField(name, "type", "GAUGE");
+			printField(name, "min", "0");
+			println("");
+			// bytes do not fit the percentage scale, only recorded
+			name = formatGraphName(dest, "MemoryUsageByteCount");
+			printField(name, "label", formatDestination(dest), "memory bytes");
+			printField(name, "type", "GAUGE");
+			printField(name, "min", "0");
+			printField(name, "graph", "no");
+		}
+	}
+
+	/**
+	 * @param aAttr
+	 * @return The field name of a broker attribute
+	 */
+	protected String formatBrokerField(String aAttr) {
+		String field = "Broker_" + aAttr;
+		if (brokerLabel != null) {
+			field = DestinationCatalog.sanitize(brokerLabel) + "_" + field;
+		}
+		return field;
+	}
+
+	/**
+	 * @param aAttr
+	 * @param aValue
+	 *            the value, or null for an unknown value
+	 */
+	protected void printBrokerValue(String aAttr, Number aValue) {
+		FieldWriter writer = output.getWriter();
+		writer.print(formatBrokerField(aAttr)).print(".value ");
+		if (aValue == null) {
+			writer.println("U");
+		} else {
+			writer.print(aValue).println();
+		}
+	}
+
+	/**
+	 * @return The object name of the broker bean
 	 */
-	protected void printDestinationValue(ObjectName aDest) {
-		String[] attributes = getAttributeNames();
+	protected ObjectName getBrokerObjectName() {
 		try {
-			AttributeList values = connection.getAttributes(aDest, attributes);
-			for (Attribute attr : values.asList()) {
-				if (attr.getValue() instanceof Number) {
-					printValue(aDest, attr.getName(), attr.getValue().toString());
+			return ObjectName.getInstance(namingScheme.brokerBean(brokerName));
+		} catch (MalformedObjectNameException e) {
+			throw new IllegalArgumentException("Invalid broker name: " + brokerName, e);
+		}
+	}
+
+	/**
+	 * @param aName
+	 * @return The label of a destination, or the object name of other beans
+	 */
+	protected String formatName(ObjectName aName) {
+		if (!isDestination(aName)) {
+			return aName.toString();
+		}
+		return formatDestination(aName);
+	}
+
+	/**
+	 * The broker bean of the pre 5.8 naming scheme also has a Type key, so only the destination name identifies a
+	 * destination.
+	 *
+	 * @param aName
+	 * @return True when the object name is a destination bean
+	 */
+	protected boolean isDestination(ObjectName aName) {
+		return aName.getKeyProperty(namingScheme.destinationName()) != null;
+	}
+
+	/**
+	 * Read the attributes of the given destinations. When the transport supports bulk reads all destinations are read
+	 * with a single request, see {@link #fetchBulk(List, String[])}. Otherwise the existing destinations are first resolved with a single pattern
+	 * query per destination type, so that destinations which do not exist cost no additional calls. The remaining
+	 * destinations are striped over {@link #fetchThreads} workers, which are spread over {@link #fetchConnections} JMX
+	 * connections. Every worker reads its destinations one after the other, so there are never more concurrent calls
+	 * than workers. Destinations which have not been read when the {@link #deadline} expires are left out. The
+	 * {@link QueryMode#TOP} graph reads in chunks instead, see {@link #fetchTop(List, String[])}.
+	 *
+	 * @param aDests
+	 * @param aAttributes
+	 * @return The values by destination. Destinations which could not be read are absent.
+	 */
+	protected Map<ObjectName, Map<String, Object>> fetchValues(List<ObjectName> aDests, String[] aAttributes) {
+		if (mode == QueryMode.RESOURCES) {
+			// the broker usage is read along with the destinations
+			List<ObjectName> names = new ArrayList<ObjectName>(aDests.size() + 1);
+			names.add(getBrokerObjectName());
+			names.addAll(aDests);
+			aDests = names;
+		}
+		Map<ObjectName, Map<String, Object>> result;
+		if (mode == QueryMode.TOP) {
+			result = fetchTop(aDests, aAttributes);
+		} else if (transport.isBulkRead()) {
+			result = fetchBulk(aDests, aAttributes);
+		} else {
+			result = fetchStriped(filterRegistered(aDests), aAttributes);
+		}
+		if (!result.isEmpty()) {
+			markAlive();
+		} else if (!aDests.isEmpty() && !deadline.isExpired()) {
+			// none of the destinations exist, the broker may use another naming scheme by now
+			output.err.println("No destinations found, the brokers will be detected again");
+			pluginState.delete(getBrokersStateName());
+			redetect = true;
+		}
+		return result;
+	}
+
+	/**
+	 * Read the attributes of the given destinations, striped over the workers.
+	 *
+	 * @param aDests
+	 * @param aAttributes
+	 * @return The values by destination. Destinations which could not be read are absent.
+	 */
+	protected Map<ObjectName, Map<String, Object>> fetchStriped(List<ObjectName> aDests, String[] aAttributes) {
+		final List<ObjectName> existing = aDests;
+		final Map<ObjectName, Map<String, Object>> result = new ConcurrentHashMap<ObjectName, Map<String, Object>>();
+		final String[] attributes = aAttributes;
+		int workers = Math.max(1, Math.min(fetchThreads, existing.size()));
+		if (workers == 1) {
+			fetchStripe(transport, existing, 0, 1, attributes, result);
+		} else {
+			List<JmxTransport> connections = getFetchConnections(Math.min(fetchConnections, workers));
+			List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+			for (int i = 0; i < workers; ++i) {
+				final JmxTransport conn = connections.get(i % connections.size());
+				final int offset = i;
+				final int step = workers;
+				tasks.add(new Callable<Object>() {
+					public Object call() {
+						fetchStripe(conn, existing, offset, step, attributes, result);
+						return null;
+					}
+				});
+			}
+			ExecutorService executor = createExecutor(workers);
+			try {
+				if (deadline.remaining() == Long.MAX_VALUE) {
+					executor.invokeAll(tasks);
 				} else {
-					output.err.println("Returned value is not a number: " + attr.toString());
-					printValue(aDest, attr.getName(), "U");
+					executor.invokeAll(tasks, deadline.remaining(), TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+		// workers which are still waiting for a response may add more values, which would not be printed
+		Map<ObjectName, Map<String, Object>> values = new HashMap<ObjectName, Map<String, Object>>(result);
+		if (deadline.isExpired() && mode != QueryMode.TOP) {
+			// the top graph reports the timeout once
+			for (ObjectName dest : existing) {
+				if (!values.containsKey(dest)) {
+					output.err.println("Fetch timeout reached, skipping: " + formatName(dest));
 				}
 			}
+		}
+		return values;
+	}
+
+	/**
+	 * Read the attributes of the given destinations with a single request, using one pattern per destination type.
+	 *
+	 * @param aDests
+	 * @param aAttributes
+	 * @return The values by destination. Destinations which could not be read are absent.
+	 */
+	protected Map<ObjectName, Map<String, Object>> fetchBulk(List<ObjectName> aDests, String[] aAttributes) {
+		Map<ObjectName, Map<String, Object>> result = new HashMap<ObjectName, Map<String, Object>>();
+		Set<String> types = new LinkedHashSet<String>();
+		List<ObjectName> patterns = new ArrayList<ObjectName>();
+		for (ObjectName dest : aDests) {
+			if (!isDestination(dest)) {
+				// not a destination, read as is
+				patterns.add(dest);
+			} else {
+				types.add(dest.getKeyProperty(namingScheme.destinationType()));
+			}
+		}
+		Map<ObjectName, Map<String, Object>> values;
+		try {
+			for (String type : types) {
+				patterns.add(ObjectName.getInstance(namingScheme.destinationBean(brokerName, type, "*")));
+			}
+			values = transport.readAttributes(patterns, aAttributes);
 		} catch (Exception e) {
 			e.printStackTrace(output.err);
-			for (String attr : attributes) {
-				printValue(aDest, attr, "U");
+			return result;
+		}
+		for (ObjectName dest : aDests) {
+			if (values.containsKey(dest)) {
+				result.put(dest, values.get(dest));
+			} else {
+				output.err.println("Destination not found: " + formatName(dest));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Read every step-th destination, starting at the offset, until the deadline expires
+	 *
+	 * @param aConnection
+	 * @param aDests
+	 * @param aOffset
+	 * @param aStep
+	 * @param aAttributes
+	 * @param aResult
+	 *            receives the values which could be read
+	 */
+	protected void fetchStripe(JmxTransport aConnection, List<ObjectName> aDests, int aOffset, int aStep, String[] aAttributes,
+			Map<ObjectName, Map<String, Object>> aResult) {
+		for (int i = aOffset; i < aDests.size() && !deadline.isExpired(); i += aStep) {
+			Map<String, Object> values = fetchDestinationValues(aConnection, aDests.get(i), aAttributes);
+			if (values != null) {
+				aResult.put(aDests.get(i), values);
+			}
+		}
+	}
+
+	/**
+	 * @param aCount
+	 * @return The main connection followed by additional connections, up to the given number. When additional
+	 *         connections cannot be opened fewer are returned.
+	 */
+	protected List<JmxTransport> getFetchConnections(int aCount) {
+		List<JmxTransport> result = new ArrayList<JmxTransport>();
+		result.add(transport);
+		try {
+			while (fetchConnectors.size() < aCount - 1) {
+				fetchConnectors.add(openTransport());
+			}
+			for (int i = 0; i < aCount - 1; ++i) {
+				result.add(fetchConnectors.get(i));
+			}
+		} catch (Exception e) {
+			output.err.println("Unable to open additional connections, using " + result.size());
+			e.printStackTrace(output.err);
+		}
+		return result;
+	}
+
+	/**
+	 * Close the additional connections used for fetching
+	 */
+	protected void closeFetchConnectors() {
+		for (JmxTransport conn : fetchConnectors) {
+			conn.close();
+		}
+		fetchConnectors.clear();
+	}
+
+	/**
+	 * Reduce the destinations to those registered with the broker, using one pattern query per destination type.
+	 *
+	 * @param aDests
+	 * @return
+	 */
+	protected List<ObjectName> filterRegistered(List<ObjectName> aDests) {
+		Map<String, Set<ObjectName>> registered = new HashMap<String, Set<ObjectName>>();
+		List<ObjectName> result = new ArrayList<ObjectName>();
+		for (ObjectName dest : aDests) {
+			if (!isDestination(dest)) {
+				// not a destination
+				result.add(dest);
+				continue;
 			}
+			String type = dest.getKeyProperty(namingScheme.destinationType());
+			if (!registered.containsKey(type)) {
+				try {
+					ObjectName pattern = ObjectName.getInstance(namingScheme.destinationBean(brokerName, type, "*"));
+					registered.put(type, transport.queryNames(pattern));
+				} catch (Exception e) {
+					e.printStackTrace(output.err);
+					// unknown, try to read the destinations anyway
+					registered.put(type, null);
+				}
+			}
+			Set<ObjectName> names = registered.get(type);
+			if (names == null || names.contains(dest)) {
+				result.add(dest);
+			} else {
+				output.err.println("Destination not found: " + formatName(dest));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Read the attributes of a destination in a single call
+	 *
+	 * @param aDest
+	 * @param aAttributes
+	 * @return The values by attribute name, or null when the values could not be retrieved.
+	 */
+	protected Map<String, Object> fetchDestinationValues(JmxTransport aConnection, ObjectName aDest, String[] aAttributes) {
+		try {
+			return aConnection.getAttributes(aDest, aAttributes);
+		} catch (InstanceNotFoundException e) {
+			// removed since the destinations were resolved, the top graph reads them without checking first
+			if (mode != QueryMode.TOP) {
+				output.err.println("Destination not found: " + formatName(aDest));
+			}
+			return null;
+		} catch (Exception e) {
+			e.printStackTrace(output.err);
+			return null;
 		}
 	}
 
@@ -494,17 +2240,45 @@ public class AmqJmxQuery extends JmxConnection {
 	 * @param str
 	 */
 	protected final void println(String str) {
-		output.out.println(str);
+		output.getWriter().println(str);
+	}
+
+	/**
+	 * Print a field attribute: <code>field.key value</code>
+	 *
+	 * @param aField
+	 * @param aKey
+	 * @param aValue
+	 */
+	protected final void printField(String aField, String aKey, String aValue) {
+		output.getWriter().print(aField).print('.').print(aKey).print(' ').println(aValue);
+	}
+
+	/**
+	 * Print a field attribute with a two part value: <code>field.key value suffix</code>
+	 *
+	 * @param aField
+	 * @param aKey
+	 * @param aValue
+	 * @param aSuffix
+	 */
+	protected final void printField(String aField, String aKey, String aValue, String aSuffix) {
+		output.getWriter().print(aField).print('.').print(aKey).print(' ').print(aValue).print(' ').println(aSuffix);
 	}
 
 	/**
 	 * @param aDest
 	 * @param aAttr
-	 * @param aString
+	 * @param aValue
+	 *            the value, or null for an unknown value
 	 */
-	protected void printValue(ObjectName aDest, String aAttr, String aValue) {
-		output.out.print(formatGraphName(aDest, aAttr));
-		output.out.print(".value ");
-		output.out.println(aValue);
+	protected void printValue(ObjectName aDest, String aAttr, Number aValue) {
+		FieldWriter writer = output.getWriter();
+		writer.print(formatGraphName(aDest, aAttr)).print(".value ");
+		if (aValue == null) {
+			writer.println("U");
+		} else {
+			writer.print(aValue).println();
+		}
 	}
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq.jmx;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+/**
+ * A destination in the {@link DestinationCatalog}, with its precomputed label and munin field name.
+ */
+public class Destination {
+	protected ObjectName objectName;
+	protected String type;
+	protected String name;
+	protected String label;
+
+	/**
+	 * The munin field name, without attribute
+	 */
+	protected String fieldName;
+
+	/**
+	 * Field names per attribute
+	 */
+	protected Map<String, String> fieldNames = new HashMap<String, String>();
+
+	/**
+	 * @param aObjectName
+	 * @param aType
+	 * @param aName
+	 * @param aLabel
+	 * @param aFieldName
+	 */
+	public Destination(ObjectName aObjectName, String aType, String aName, String aLabel, String aFieldName) {
+		super();
+		objectName = aObjectName;
+		type = aType;
+		name = aName;
+		label = aLabel;
+		fieldName = aFieldName;
+	}
+
+	/**
+	 * @return the objectName
+	 */
+	public ObjectName getObjectName() {
+		return objectName;
+	}
+
+	/**
+	 * @return the type
+	 */
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the label
+	 */
+	public String getLabel() {
+		return label;
+	}
+
+	/**
+	 * @return the fieldName
+	 */
+	public String getFieldName() {
+		return fieldName;
+	}
+
+	/**
+	 * @param aAttr
+	 * @return The munin field name for the attribute of this destination
+	 */
+	public String getFieldName(String aAttr) {
+		String result = fieldNames.get(aAttr);
+		if (result == null) {
+			result = fieldName + "_" + aAttr;
+			fieldNames.put(aAttr, result);
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return label;
+	}
+}
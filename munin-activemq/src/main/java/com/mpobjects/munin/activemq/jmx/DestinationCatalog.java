@@ -0,0 +1,205 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq.jmx;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.management.ObjectName;
+
+/**
+ * Catalog of destinations and their munin field names. Field names are derived from the destination type and name,
+ * with every sequence of characters not allowed by munin replaced by an underscore. When two destinations end up with
+ * the same field name, for example <code>a.b</code> and <code>a-b</code>, the later one gets a numeric suffix. The
+ * assigned field names can be stored, so that a destination keeps its field name when other destinations come and go.
+ */
+public class DestinationCatalog {
+	protected NamingScheme namingScheme;
+
+	/**
+	 * Optional prefix of the labels and field names
+	 */
+	protected String brokerLabel;
+
+	protected Map<ObjectName, Destination> destinations = new HashMap<ObjectName, Destination>();
+
+	/**
+	 * Assigned field names by destination key (type:name)
+	 */
+	protected Map<String, String> assigned = new HashMap<String, String>();
+
+	protected Set<String> usedFieldNames = new HashSet<String>();
+
+	/**
+	 * True when field names were assigned since the last call to {@link #toProperties()}
+	 */
+	protected boolean modified;
+
+	/**
+	 * @param aNamingScheme
+	 * @param aBrokerLabel
+	 *            optional prefix for labels and field names
+	 */
+	public DestinationCatalog(NamingScheme aNamingScheme, String aBrokerLabel) {
+		super();
+		if (aNamingScheme == null) {
+			throw new NullPointerException("Naming scheme cannot be null");
+		}
+		namingScheme = aNamingScheme;
+		brokerLabel = aBrokerLabel;
+	}
+
+	/**
+	 * @return the namingScheme
+	 */
+	public NamingScheme getNamingScheme() {
+		return namingScheme;
+	}
+
+	/**
+	 * @return true when field names were assigned which have not been stored
+	 */
+	public boolean isModified() {
+		return modified;
+	}
+
+	/**
+	 * Get the catalog entry for a destination, creating it when needed.
+	 *
+	 * @param aObjectName
+	 * @return
+	 */
+	public Destination get(ObjectName aObjectName) {
+		Destination dest = destinations.get(aObjectName);
+		if (dest == null) {
+			dest = create(aObjectName);
+			destinations.put(aObjectName, dest);
+		}
+		return dest;
+	}
+
+	/**
+	 * Add destinations to the catalog. New destinations are added in the order of their key, so that collisions are
+	 * resolved the same way regardless of the order in which they were requested.
+	 *
+	 * @param aObjectNames
+	 */
+	public void addAll(Collection<ObjectName> aObjectNames) {
+		List<ObjectName> added = new ArrayList<ObjectName>();
+		for (ObjectName name : aObjectNames) {
+			if (!destinations.containsKey(name)) {
+				added.add(name);
+			}
+		}
+		Collections.sort(added);
+		for (ObjectName name : added) {
+			get(name);
+		}
+	}
+
+	/**
+	 * Restore assigned field names
+	 *
+	 * @param aProps
+	 */
+	public void load(Properties aProps) {
+		for (String key : aProps.stringPropertyNames()) {
+			String field = aProps.getProperty(key);
+			if (!usedFieldNames.contains(field)) {
+				assigned.put(key, field);
+				usedFieldNames.add(field);
+			}
+		}
+	}
+
+	/**
+	 * @return The assigned field names
+	 */
+	public Properties toProperties() {
+		Properties props = new Properties();
+		for (Entry<String, String> entry : assigned.entrySet()) {
+			props.setProperty(entry.getKey(), entry.getValue());
+		}
+		modified = false;
+		return props;
+	}
+
+	/**
+	 * Create the catalog entry of a destination
+	 *
+	 * @param aObjectName
+	 * @return
+	 */
+	protected Destination create(ObjectName aObjectName) {
+		String type = aObjectName.getKeyProperty(namingScheme.destinationType());
+		String name = aObjectName.getKeyProperty(namingScheme.destinationName());
+		if (name.startsWith("\"")) {
+			// destination groups are quoted
+			name = ObjectName.unquote(name);
+		}
+		String key = type + ":" + name;
+
+		String field = assigned.get(key);
+		if (field == null) {
+			String base = sanitize(type) + "_" + sanitize(name);
+			field = base;
+			for (int i = 2; usedFieldNames.contains(field); ++i) {
+				field = base + "_" + i;
+			}
+			assigned.put(key, field);
+			usedFieldNames.add(field);
+			modified = true;
+		}
+
+		String label = String.format("%s: %s", type, name);
+		if (brokerLabel != null) {
+			label = brokerLabel + " " + label;
+			field = sanitize(brokerLabel) + "_" + field;
+		}
+		return new Destination(aObjectName, type, name, label, field);
+	}
+
+	/**
+	 * Replace every sequence of characters other than a-z, A-Z and 0-9 by a single underscore.
+	 *
+	 * @param aStr
+	 * @return
+	 */
+	public static String sanitize(String aStr) {
+		StringBuilder sb = new StringBuilder(aStr.length());
+		boolean replaced = false;
+		for (int i = 0; i < aStr.length(); ++i) {
+			char c = aStr.charAt(i);
+			if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9') {
+				sb.append(c);
+				replaced = false;
+			} else if (!replaced) {
+				sb.append('_');
+				replaced = true;
+			}
+		}
+		return sb.toString();
+	}
+}
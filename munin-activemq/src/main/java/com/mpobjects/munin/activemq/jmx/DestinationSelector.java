@@ -0,0 +1,438 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq.jmx;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled set of destination selectors. The selectors are:
+ * <ul>
+ * <li><code>type:name</code> a literal destination, always selected</li>
+ * <li><code>+type:regex</code> include destinations matching the regular expression</li>
+ * <li><code>+!type:regex</code> exclude destinations matching the regular expression</li>
+ * <li><code>~type:pattern</code> include destinations matching the object name pattern (* and ?)</li>
+ * <li><code>=type:regex</code> include destinations matching the regular expression, and graph them as a group. The
+ * group is named after the first capturing group of the expression, or the whole name when it has none. For example
+ * <code>=queue:([^.]+)\..*</code> groups the queues by the part of their name up to the first dot.</li>
+ * </ul>
+ * A destination is selected by the patterns when it matches no exclude, and matches an include. When a type only has
+ * excludes all other destinations of that type are selected. All patterns are compiled once and grouped by their literal
+ * prefix, so that each destination is only evaluated against the expressions whose prefix it starts with. The
+ * expressions are not combined into a single expression, that would renumber their capturing groups and break
+ * backreferences.
+ */
+public class DestinationSelector {
+	protected static final String[] TYPES = { "queue", "topic" };
+
+	protected List<String> selectors;
+
+	/**
+	 * The literal destinations, in configured order.
+	 */
+	protected List<String> literals = new ArrayList<String>();
+
+	protected Map<String, TypeMatcher> matchers = new HashMap<String, TypeMatcher>();
+
+	/**
+	 * The group expressions by type, in configured order.
+	 */
+	protected Map<String, List<Pattern>> groups = new HashMap<String, List<Pattern>>();
+
+	/**
+	 * The object name patterns by type which select the same destinations as all patterns, or null when this is not
+	 * possible.
+	 */
+	protected Map<String, List<String>> pushDown = new HashMap<String, List<String>>();
+
+	public DestinationSelector(List<String> aSelectors) {
+		super();
+		selectors = new ArrayList<String>(aSelectors);
+		for (String type : TYPES) {
+			matchers.put(type, new TypeMatcher());
+		}
+		for (String sel : selectors) {
+			parse(sel);
+		}
+		for (TypeMatcher matcher : matchers.values()) {
+			matcher.compile();
+		}
+	}
+
+	/**
+	 * @return the selectors this was created from
+	 */
+	public List<String> getSelectors() {
+		return selectors;
+	}
+
+	/**
+	 * @return the literal destinations
+	 */
+	public List<String> getLiterals() {
+		return literals;
+	}
+
+	/**
+	 * @return True when there are patterns which need to be matched against the known destinations.
+	 */
+	public boolean hasPatterns() {
+		for (TypeMatcher matcher : matchers.values()) {
+			if (matcher.hasIncludes || matcher.hasExcludes) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return True when there are group selectors
+	 */
+	public boolean hasGroups() {
+		return !groups.isEmpty();
+	}
+
+	/**
+	 * @param aType
+	 * @param aName
+	 * @return The group of the destination, of the first group selector it matches. Null when it is not part of a
+	 *         group.
+	 */
+	public String getGroup(String aType, String aName) {
+		List<Pattern> patterns = groups.get(aType.toLowerCase());
+		if (patterns == null) {
+			return null;
+		}
+		for (Pattern pattern : patterns) {
+			Matcher m = pattern.matcher(aName);
+			if (m.matches()) {
+				if (m.groupCount() > 0 && m.group(1) != null) {
+					return m.group(1);
+				}
+				return m.group();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The object name patterns by type which together select exactly the destinations selected by the
+	 *         patterns, or null when the patterns cannot be expressed as object name patterns.
+	 */
+	public Map<String, List<String>> getPushDownPatterns() {
+		return pushDown;
+	}
+
+	/**
+	 * @param aType
+	 * @param aName
+	 * @return True when the destination is selected by the patterns.
+	 */
+	public boolean matches(String aType, String aName) {
+		TypeMatcher matcher = matchers.get(aType.toLowerCase());
+		return matcher != null && matcher.matches(aName);
+	}
+
+	/**
+	 * Select the destinations.
+	 *
+	 * @param aCandidates
+	 *            The known destinations by type
+	 * @return The literal destinations followed by the matching candidates by type, without duplicates.
+	 */
+	public List<String> select(Map<String, Set<String>> aCandidates) {
+		Set<String> result = new LinkedHashSet<String>(literals);
+		for (String type : TYPES) {
+			TypeMatcher matcher = matchers.get(type);
+			Set<String> candidates = aCandidates.get(type);
+			if (candidates == null || !matcher.hasIncludes && !matcher.hasExcludes) {
+				continue;
+			}
+			for (String can : candidates) {
+				if (matcher.matches(can)) {
+					result.add(String.format("%s:%s", type, can));
+				}
+			}
+		}
+		return new ArrayList<String>(result);
+	}
+
+	/**
+	 * Parse a single selector
+	 *
+	 * @param aSelector
+	 */
+	protected void parse(String aSelector) {
+		String dest;
+		boolean glob;
+		boolean group = false;
+		if (aSelector.startsWith("~")) {
+			dest = aSelector.substring(1);
+			glob = true;
+		} else if (aSelector.startsWith("=")) {
+			dest = aSelector.substring(1);
+			glob = false;
+			group = true;
+		} else if (aSelector.startsWith("+")) {
+			dest = aSelector.substring(1);
+			glob = false;
+		} else {
+			literals.add(normalizeLiteral(aSelector));
+			return;
+		}
+		boolean include = true;
+		if (!glob && !group && dest.startsWith("!")) {
+			dest = dest.substring(1);
+			include = false;
+		}
+		String type = "queue";
+		if (dest.toLowerCase().startsWith("queue:")) {
+			dest = dest.substring("queue:".length());
+		} else if (dest.toLowerCase().startsWith("topic:")) {
+			dest = dest.substring("topic:".length());
+			type = "topic";
+		}
+
+		String regex;
+		String pattern;
+		if (glob) {
+			regex = globToRegex(dest);
+			pattern = dest;
+		} else {
+			// fail early on invalid expressions
+			Pattern.compile(dest);
+			regex = dest;
+			pattern = toObjectNamePattern(dest);
+		}
+		matchers.get(type).add(regex, literalPrefix(regex), include);
+		if (group) {
+			List<Pattern> patterns = groups.get(type);
+			if (patterns == null) {
+				patterns = new ArrayList<Pattern>();
+				groups.put(type, patterns);
+			}
+			patterns.add(Pattern.compile(regex));
+		}
+
+		if (pushDown != null) {
+			if (!include || pattern == null) {
+				pushDown = null;
+			} else {
+				List<String> patterns = pushDown.get(type);
+				if (patterns == null) {
+					patterns = new ArrayList<String>();
+					pushDown.put(type, patterns);
+				}
+				patterns.add(pattern);
+			}
+		}
+	}
+
+	/**
+	 * @param aDest
+	 * @return The literal destination with a lower case type, so that it is equal to a matched destination.
+	 */
+	protected static String normalizeLiteral(String aDest) {
+		int idx = aDest.indexOf(':');
+		if (idx == -1) {
+			return "queue:" + aDest;
+		}
+		String type = aDest.substring(0, idx);
+		if ("queue".equalsIgnoreCase(type) || "topic".equalsIgnoreCase(type)) {
+			return type.toLowerCase() + aDest.substring(idx);
+		}
+		return aDest;
+	}
+
+	/**
+	 * @param aGlob
+	 * @return The regular expression for an object name value pattern
+	 */
+	protected static String globToRegex(String aGlob) {
+		StringBuilder sb = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for (int i = 0; i < aGlob.length(); ++i) {
+			char c = aGlob.charAt(i);
+			if (c == '*' || c == '?') {
+				if (literal.length() > 0) {
+					sb.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+				}
+				sb.append(c == '*' ? ".*" : ".");
+			} else {
+				literal.append(c);
+			}
+		}
+		if (literal.length() > 0) {
+			sb.append(Pattern.quote(literal.toString()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param aRegex
+	 * @return The literal text every match of the expression starts with
+	 */
+	protected static String literalPrefix(String aRegex) {
+		if (aRegex.startsWith("\\Q")) {
+			int end = aRegex.indexOf("\\E");
+			if (end == -1 || end + 2 < aRegex.length() && "*?{+".indexOf(aRegex.charAt(end + 2)) != -1) {
+				return "";
+			}
+			return aRegex.substring(2, end);
+		}
+		if (aRegex.indexOf('|') != -1) {
+			return "";
+		}
+		int i = 0;
+		while (i < aRegex.length() && "\\.[]{}()*+?^$|".indexOf(aRegex.charAt(i)) == -1) {
+			++i;
+		}
+		if (i < aRegex.length() && i > 0 && "*?{".indexOf(aRegex.charAt(i)) != -1) {
+			// the last character is optional
+			--i;
+		}
+		return aRegex.substring(0, i);
+	}
+
+	/**
+	 * Convert a regular expression to an equivalent object name value pattern. Only literal characters, <code>.</code>,
+	 * <code>.*</code> and <code>.+</code> can be converted.
+	 *
+	 * @param aRegex
+	 * @return The pattern, or null when the expression cannot be expressed as pattern.
+	 */
+	protected static String toObjectNamePattern(String aRegex) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < aRegex.length(); ++i) {
+			char c = aRegex.charAt(i);
+			char next = i + 1 < aRegex.length() ? aRegex.charAt(i + 1) : 0;
+			if (c == '.') {
+				if (next == '*') {
+					sb.append('*');
+					++i;
+				} else if (next == '+') {
+					sb.append("?*");
+					++i;
+				} else {
+					sb.append('?');
+				}
+			} else if (c == '\\' && next != 0 && !Character.isLetterOrDigit(next)) {
+				if (",=:\"*?\\".indexOf(next) != -1) {
+					// special characters in object names
+					return null;
+				}
+				sb.append(next);
+				++i;
+			} else if (Character.isLetterOrDigit(c) || c == '_' || c == '-') {
+				sb.append(c);
+			} else {
+				return null;
+			}
+		}
+		if (sb.length() == 0) {
+			return null;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The compiled includes and excludes of a single destination type
+	 */
+	protected static class TypeMatcher {
+		protected boolean hasIncludes;
+		protected boolean hasExcludes;
+
+		protected Map<String, List<String>> includeSources = new HashMap<String, List<String>>();
+		protected Map<String, List<String>> excludeSources = new HashMap<String, List<String>>();
+
+		protected Map<String, List<Pattern>> includes = new HashMap<String, List<Pattern>>();
+		protected Map<String, List<Pattern>> excludes = new HashMap<String, List<Pattern>>();
+
+		/**
+		 * The distinct lengths of all prefixes, used to look up the expressions for a name.
+		 */
+		protected Set<Integer> prefixLengths = new TreeSet<Integer>();
+
+		protected void add(String aRegex, String aPrefix, boolean aInclude) {
+			Map<String, List<String>> sources = aInclude ? includeSources : excludeSources;
+			List<String> list = sources.get(aPrefix);
+			if (list == null) {
+				list = new ArrayList<String>();
+				sources.put(aPrefix, list);
+			}
+			list.add(aRegex);
+			prefixLengths.add(aPrefix.length());
+			if (aInclude) {
+				hasIncludes = true;
+			} else {
+				hasExcludes = true;
+			}
+		}
+
+		protected void compile() {
+			compile(includeSources, includes);
+			compile(excludeSources, excludes);
+		}
+
+		protected void compile(Map<String, List<String>> aSources, Map<String, List<Pattern>> aTarget) {
+			for (Entry<String, List<String>> entry : aSources.entrySet()) {
+				List<Pattern> patterns = new ArrayList<Pattern>(entry.getValue().size());
+				for (String regex : entry.getValue()) {
+					patterns.add(Pattern.compile(regex));
+				}
+				aTarget.put(entry.getKey(), patterns);
+			}
+		}
+
+		protected boolean matches(String aName) {
+			if (hasExcludes && matchesAny(excludes, aName)) {
+				return false;
+			}
+			if (!hasIncludes) {
+				return hasExcludes;
+			}
+			return matchesAny(includes, aName);
+		}
+
+		protected boolean matchesAny(Map<String, List<Pattern>> aPatterns, String aName) {
+			for (Integer len : prefixLengths) {
+				if (len > aName.length()) {
+					break;
+				}
+				List<Pattern> patterns = aPatterns.get(aName.substring(0, len));
+				if (patterns == null) {
+					continue;
+				}
+				for (Pattern pat : patterns) {
+					if (pat.matcher(aName).matches()) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+	}
+}
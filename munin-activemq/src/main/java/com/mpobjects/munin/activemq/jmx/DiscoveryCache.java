@@ -0,0 +1,133 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq.jmx;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.mpobjects.munin.activemq.PluginState;
+
+/**
+ * Persistent copy of the destinations known by a broker, as returned by {@link AmqJmxQuery#getDestinations()}.
+ */
+public class DiscoveryCache {
+	protected PluginState state;
+	protected String name;
+
+	protected Map<String, Set<String>> destinations;
+
+	/**
+	 * Time the destinations were read from the broker.
+	 */
+	protected long loadedAt;
+
+	/**
+	 * @param aState
+	 * @param aName
+	 *            the name of the state
+	 */
+	public DiscoveryCache(PluginState aState, String aName) {
+		super();
+		if (aState == null) {
+			throw new NullPointerException("State cannot be null");
+		}
+		state = aState;
+		name = aName;
+	}
+
+	/**
+	 * @return true when destinations are available
+	 */
+	public boolean isLoaded() {
+		return destinations != null;
+	}
+
+	/**
+	 * @return the destinations
+	 */
+	public Map<String, Set<String>> getDestinations() {
+		return destinations;
+	}
+
+	/**
+	 * @return the loadedAt
+	 */
+	public long getLoadedAt() {
+		return loadedAt;
+	}
+
+	/**
+	 * Replace the cached destinations
+	 *
+	 * @param aDestinations
+	 * @param aTime
+	 */
+	public void update(Map<String, Set<String>> aDestinations, long aTime) {
+		destinations = aDestinations;
+		loadedAt = aTime;
+	}
+
+	/**
+	 * Load the cache from the plugin state, if present.
+	 *
+	 * @throws IOException
+	 */
+	public void load() throws IOException {
+		Properties props = state.load(name);
+		if (props == null) {
+			return;
+		}
+		Map<String, Set<String>> dests = new HashMap<String, Set<String>>();
+		for (String type : new String[] { "queue", "topic" }) {
+			Set<String> names = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+			int count = Integer.parseInt(props.getProperty(type + ".count", "0"));
+			for (int i = 0; i < count; ++i) {
+				names.add(props.getProperty(type + "." + i));
+			}
+			dests.put(type, names);
+		}
+		destinations = dests;
+		loadedAt = Long.parseLong(props.getProperty("loadedAt", "0"));
+	}
+
+	/**
+	 * Write the cache to the plugin state
+	 *
+	 * @throws IOException
+	 */
+	public void store() throws IOException {
+		if (destinations == null) {
+			return;
+		}
+		Properties props = new Properties();
+		for (Entry<String, Set<String>> entry : destinations.entrySet()) {
+			int i = 0;
+			for (String dest : entry.getValue()) {
+				props.setProperty(entry.getKey() + "." + i, dest);
+				++i;
+			}
+			props.setProperty(entry.getKey() + ".count", String.valueOf(i));
+		}
+		props.setProperty("loadedAt", String.valueOf(loadedAt));
+		state.store(name, props);
+	}
+}
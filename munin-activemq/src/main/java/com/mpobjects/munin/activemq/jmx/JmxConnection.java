@@ -16,27 +16,98 @@
  */
 package com.mpobjects.munin.activemq.jmx;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import javax.management.MBeanServerConnection;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 
+import com.mpobjects.munin.activemq.Deadline;
 import com.mpobjects.munin.activemq.Output;
 
 /**
  * Base code to set up the JMX connection
  */
 public class JmxConnection {
+	/**
+	 * System property of the RMI transport which limits the time to wait for a response
+	 */
+	protected static final String RMI_RESPONSE_TIMEOUT = "sun.rmi.transport.tcp.responseTimeout";
+
+	/**
+	 * True when {@link #RMI_RESPONSE_TIMEOUT} was set by this class, a value set by the user is never changed
+	 */
+	protected static boolean rmiTimeoutSet;
+
 	protected String host = "localhost";
 	protected int port = 1099;
 	protected String user;
 	protected String pass;
 
+	/**
+	 * Seconds to wait for the connection to be established. 0 means no timeout.
+	 */
+	protected int connectTimeout = 5;
+
+	/**
+	 * Seconds to wait for the response of a single remote call. 0 means no timeout.
+	 */
+	protected int callTimeout = 5;
+
+	/**
+	 * The deadline of the current run, also limits the time to connect
+	 */
+	protected Deadline deadline = Deadline.NONE;
+
+	/**
+	 * Seconds after which an idle connection is verified before it is used again. 0 disables the check.
+	 */
+	protected int keepAlive = 60;
+
+	/**
+	 * Seconds to wait before the first reconnect attempt, doubled for every failed attempt.
+	 */
+	protected int reconnectDelay = 1;
+
+	/**
+	 * Maximum number of seconds between reconnect attempts.
+	 */
+	protected int reconnectMaxDelay = 300;
+
+	/**
+	 * The URL of a Jolokia agent. When set Jolokia is used instead of RMI.
+	 */
+	protected String jolokiaUrl;
+
+	/**
+	 * The process id, or part of the main class, of a JVM on this host. When set its local JMX connector is used.
+	 */
+	protected String localTarget;
+
+	/**
+	 * The connector address of {@link #localTarget}, looked up again when it cannot be connected to
+	 */
+	protected String localAddress;
+
 	protected Output output;
-	protected MBeanServerConnection connection;
+	protected JmxTransport transport;
+
+	protected long lastChecked;
+	protected boolean connectedBefore;
+	protected int failures;
+	protected long nextAttempt;
+	protected Random random = new Random();
 
 	public JmxConnection(Output aOutput) {
 		super();
@@ -47,6 +118,35 @@ public class JmxConnection {
 		init();
 	}
 
+	/**
+	 * @param aOutput
+	 *            the output to use for subsequent calls
+	 */
+	public void setOutput(Output aOutput) {
+		if (aOutput == null) {
+			throw new NullPointerException("Output cannot be null");
+		}
+		output = aOutput;
+	}
+
+	/**
+	 * @param aDeadline
+	 *            the deadline of the current run
+	 */
+	public void setDeadline(Deadline aDeadline) {
+		deadline = aDeadline;
+		if (transport instanceof JolokiaTransport) {
+			((JolokiaTransport) transport).setDeadline(aDeadline);
+		}
+	}
+
+	/**
+	 * @return the seconds after which an idle connection is verified
+	 */
+	public int getKeepAlive() {
+		return keepAlive;
+	}
+
 	/**
 	 * @param aHost
 	 *            the host to set
@@ -79,6 +179,23 @@ public class JmxConnection {
 		pass = aPass;
 	}
 
+	/**
+	 * @param aJolokiaUrl
+	 *            the Jolokia agent to use, or null to use RMI
+	 */
+	public void setJolokiaUrl(String aJolokiaUrl) {
+		jolokiaUrl = aJolokiaUrl;
+	}
+
+	/**
+	 * @param aLocalTarget
+	 *            the process id, or part of the main class, of a local JVM to use, or null
+	 */
+	public void setLocalTarget(String aLocalTarget) {
+		localTarget = aLocalTarget;
+		localAddress = null;
+	}
+
 	/**
 	 * @return the host
 	 */
@@ -122,45 +239,318 @@ public class JmxConnection {
 		} else {
 			pass = System.getProperty("JMX_PASS", pass);
 		}
+		if (env.get("JOLOKIA_URL") != null) {
+			jolokiaUrl = env.get("JOLOKIA_URL");
+		} else {
+			jolokiaUrl = System.getProperty("JOLOKIA_URL", jolokiaUrl);
+		}
+		if (jolokiaUrl != null && jolokiaUrl.trim().length() == 0) {
+			jolokiaUrl = null;
+		}
+		if (env.get("JMX_LOCAL") != null) {
+			localTarget = env.get("JMX_LOCAL");
+		} else {
+			localTarget = System.getProperty("JMX_LOCAL", localTarget);
+		}
+		if (localTarget != null && localTarget.trim().length() == 0) {
+			localTarget = null;
+		}
+		if (env.get("CONNECT_TIMEOUT") != null) {
+			connectTimeout = Integer.parseInt(env.get("CONNECT_TIMEOUT"));
+		} else {
+			connectTimeout = Integer.getInteger("CONNECT_TIMEOUT", connectTimeout);
+		}
+		if (env.get("CALL_TIMEOUT") != null) {
+			callTimeout = Integer.parseInt(env.get("CALL_TIMEOUT"));
+		} else {
+			callTimeout = Integer.getInteger("CALL_TIMEOUT", callTimeout);
+		}
+		if (env.get("KEEPALIVE") != null) {
+			keepAlive = Integer.parseInt(env.get("KEEPALIVE"));
+		} else {
+			keepAlive = Integer.getInteger("KEEPALIVE", keepAlive);
+		}
+		if (env.get("RECONNECT_DELAY") != null) {
+			reconnectDelay = Integer.parseInt(env.get("RECONNECT_DELAY"));
+		} else {
+			reconnectDelay = Integer.getInteger("RECONNECT_DELAY", reconnectDelay);
+		}
+		if (env.get("RECONNECT_MAX_DELAY") != null) {
+			reconnectMaxDelay = Integer.parseInt(env.get("RECONNECT_MAX_DELAY"));
+		} else {
+			reconnectMaxDelay = Integer.getInteger("RECONNECT_MAX_DELAY", reconnectMaxDelay);
+		}
+		setRmiResponseTimeout(callTimeout);
 	}
 
 	/**
-	 * Connect to the JMX server (if not already connected)
+	 * Limit the time to wait for an RMI response. This is a system property, so it applies to all RMI connections of
+	 * the process, and it is read by the RMI transport when it is first used. The smallest call timeout of the
+	 * connections created before that is used, a later change has no effect.
+	 *
+	 * @param aCallTimeout
+	 *            seconds
+	 */
+	protected static synchronized void setRmiResponseTimeout(int aCallTimeout) {
+		if (aCallTimeout <= 0) {
+			return;
+		}
+		String current = System.getProperty(RMI_RESPONSE_TIMEOUT);
+		if (current != null && !rmiTimeoutSet) {
+			return;
+		}
+		long timeout = aCallTimeout * 1000L;
+		if (current == null || timeout < Long.parseLong(current)) {
+			System.setProperty(RMI_RESPONSE_TIMEOUT, String.valueOf(timeout));
+			rmiTimeoutSet = true;
+		}
+	}
+
+	/**
+	 * Connect to the JMX server (if not already connected). An existing connection is reused as long as it is alive.
+	 * After a failed attempt the next attempt is postponed, with an exponentially growing delay.
 	 * 
 	 * @return
 	 */
 	public boolean connect() {
-		if (connection != null) {
-			return true;
+		if (transport != null) {
+			if (isAlive()) {
+				return true;
+			}
+			output.err.println("Connection lost: " + getJmxUrl());
+			close();
 		}
 		String url = getJmxUrl();
-		boolean withAuth = false;
+		long now = System.currentTimeMillis();
+		if (now < nextAttempt) {
+			output.err.println(String.format("Not reconnecting to %s for another %d ms", url, nextAttempt - now));
+			return false;
+		}
+		boolean withAuth = user != null;
 		try {
-			JMXServiceURL jmxUrl = new JMXServiceURL(url);
-			Map<String, Object> env = new HashMap<String, Object>();
-			if (user != null) {
-				env.put(JMXConnector.CREDENTIALS, new String[] { user, pass });
-				env.put("username", user);
-				env.put("password", pass);
-				withAuth = true;
+			transport = openTransport();
+			lastChecked = System.currentTimeMillis();
+			failures = 0;
+			nextAttempt = 0;
+			if (connectedBefore) {
+				reconnected();
 			}
-			JMXConnector connector = JMXConnectorFactory.connect(jmxUrl, env);
-			connection = connector.getMBeanServerConnection();
+			connectedBefore = true;
 			return true;
 		} catch (Exception e) {
 			output.err.println("Unable to connect to (with authentication: " + withAuth + "): " + url);
-			if (!withAuth) {
+			if (!withAuth && localTarget == null) {
 				output.err.println("Authentication might be required. Set JMX_USER and JMX_PASS.");
 			}
 			e.printStackTrace(output.err);
+			close();
+			scheduleReconnect();
+			return false;
+		}
+	}
+
+	/**
+	 * Open a new transport to the JMX server. For Jolokia a cheap request is made to verify the agent can be reached. For
+	 * a local JVM the connector address is looked up through the Attach API, starting its management agent if needed.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	protected JmxTransport openTransport() throws IOException {
+		if (jolokiaUrl != null) {
+			long timeout = deadline.limit(connectTimeout * 1000L);
+			int connTimeout = timeout == Long.MAX_VALUE ? 0 : (int) Math.max(1, timeout);
+			JolokiaTransport result = new JolokiaTransport(jolokiaUrl, user, pass, connTimeout, callTimeout * 1000);
+			result.setDeadline(deadline);
+			result.ping();
+			return result;
+		}
+		if (localTarget != null) {
+			// attaching can hang as well, so it is part of the timed connect
+			return new RmiTransport(connect(new Callable<JMXConnector>() {
+				public JMXConnector call() throws IOException {
+					return connectLocal();
+				}
+			}));
+		}
+		JMXServiceURL jmxUrl = new JMXServiceURL(getJmxUrl());
+		Map<String, Object> env = new HashMap<String, Object>();
+		if (user != null) {
+			env.put(JMXConnector.CREDENTIALS, new String[] { user, pass });
+			env.put("username", user);
+			env.put("password", pass);
+		}
+		return new RmiTransport(connect(jmxUrl, env));
+	}
+
+	/**
+	 * Close the connection, if any.
+	 */
+	public void close() {
+		if (transport != null) {
+			transport.close();
+		}
+		transport = null;
+	}
+
+	/**
+	 * @return True when the connection has not been reported as closed or failed. When it has not been checked for
+	 *         {@link #keepAlive} seconds a cheap call is made to verify it.
+	 */
+	protected boolean isAlive() {
+		if (!transport.isOpen()) {
 			return false;
 		}
+		long now = System.currentTimeMillis();
+		if (keepAlive > 0 && now - lastChecked >= keepAlive * 1000L) {
+			try {
+				transport.ping();
+			} catch (IOException e) {
+				return false;
+			}
+			lastChecked = now;
+		}
+		return true;
 	}
 
 	/**
-	 * @return the JMX URI
+	 * Record a successful call, so that the connection is not verified again for another {@link #keepAlive} seconds.
+	 */
+	protected void markAlive() {
+		lastChecked = System.currentTimeMillis();
+	}
+
+	/**
+	 * Postpone the next connection attempt, doubling the delay for every failure up to {@link #reconnectMaxDelay}. A
+	 * random part of up to half the delay is subtracted so that multiple collectors do not reconnect in lockstep.
+	 */
+	protected void scheduleReconnect() {
+		++failures;
+		long delay = Math.min(reconnectMaxDelay * 1000L, reconnectDelay * 1000L << Math.min(failures - 1, 20));
+		delay -= (long) (random.nextDouble() * delay / 2);
+		nextAttempt = System.currentTimeMillis() + delay;
+	}
+
+	/**
+	 * Called when a connection was established after an earlier connection was lost. Subclasses should discard
+	 * everything derived from the previous connection.
+	 */
+	protected void reconnected() {
+		// nothing cached here
+	}
+
+	/**
+	 * @return the JMX URI, the Jolokia URL when Jolokia is used, or the target of a local JVM
 	 */
 	protected String getJmxUrl() {
+		if (jolokiaUrl != null) {
+			return jolokiaUrl;
+		}
+		if (localTarget != null) {
+			return "local:" + localTarget;
+		}
 		return String.format("service:jmx:rmi:///jndi/rmi://%s:%d/jmxrmi", host, port);
 	}
+
+	/**
+	 * Connect to the local JVM {@link #localTarget}. The connector address is only looked up through the Attach API
+	 * when there is none yet, or when it cannot be connected to because the JVM was restarted.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	protected synchronized JMXConnector connectLocal() throws IOException {
+		if (localAddress != null) {
+			try {
+				return JMXConnectorFactory.connect(new JMXServiceURL(localAddress), new HashMap<String, Object>());
+			} catch (IOException e) {
+				localAddress = null;
+			}
+		}
+		String address = new LocalAttach().getConnectorAddress(localTarget);
+		JMXConnector result = JMXConnectorFactory.connect(new JMXServiceURL(address), new HashMap<String, Object>());
+		localAddress = address;
+		return result;
+	}
+
+	/**
+	 * Create the connector, giving up after {@link #connectTimeout} seconds or when the {@link #deadline} expires. A
+	 * connection which is established after giving up is closed.
+	 *
+	 * @param aUrl
+	 * @param aEnv
+	 * @return
+	 * @throws IOException
+	 */
+	protected JMXConnector connect(final JMXServiceURL aUrl, final Map<String, Object> aEnv) throws IOException {
+		return connect(new Callable<JMXConnector>() {
+			public JMXConnector call() throws IOException {
+				return JMXConnectorFactory.connect(aUrl, aEnv);
+			}
+		});
+	}
+
+	/**
+	 * Run a connect task, giving up after {@link #connectTimeout} seconds or when the {@link #deadline} expires. A
+	 * connection which is established after giving up is closed.
+	 *
+	 * @param aConnect
+	 * @return
+	 * @throws IOException
+	 */
+	protected JMXConnector connect(Callable<JMXConnector> aConnect) throws IOException {
+		final long timeout = deadline.limit(connectTimeout * 1000L);
+		if (timeout == Long.MAX_VALUE) {
+			try {
+				return aConnect.call();
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException("Connect failed", e);
+			}
+		}
+		ExecutorService executor = createExecutor(1);
+		final Future<JMXConnector> future = executor.submit(aConnect);
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			// runs after the connect attempt finished
+			executor.submit(new Runnable() {
+				public void run() {
+					try {
+						future.get().close();
+					} catch (Exception e) {
+						// connect failed after all
+					}
+				}
+			});
+			throw new IOException(String.format("Connect timed out after %d ms", timeout));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while connecting");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Connect failed", e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Create a thread pool of daemon threads, so that calls which do not return in time never keep the process alive.
+	 *
+	 * @param aThreads
+	 * @return
+	 */
+	protected static ExecutorService createExecutor(int aThreads) {
+		return Executors.newFixedThreadPool(Math.max(1, aThreads), new ThreadFactory() {
+			public Thread newThread(Runnable aRunnable) {
+				Thread thread = new Thread(aRunnable, "munin-activemq");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq.jmx;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The operations used to talk to the MBean server of a broker, independent of the protocol.
+ */
+public interface JmxTransport {
+	/**
+	 * @return False when the transport knows the connection has been lost
+	 */
+	boolean isOpen();
+
+	/**
+	 * Perform a cheap call to verify the connection
+	 *
+	 * @throws IOException
+	 */
+	void ping() throws IOException;
+
+	/**
+	 * @param aName
+	 * @return True when the MBean is registered
+	 * @throws IOException
+	 */
+	boolean isRegistered(ObjectName aName) throws IOException;
+
+	/**
+	 * @param aPatterns
+	 * @return The names of the MBeans matching any of the patterns
+	 * @throws IOException
+	 */
+	Set<ObjectName> queryNames(ObjectName... aPatterns) throws IOException;
+
+	/**
+	 * @param aName
+	 * @param aAttributes
+	 * @return The values of the attributes which could be read
+	 * @throws IOException
+	 * @throws JMException
+	 */
+	Map<String, Object> getAttributes(ObjectName aName, String[] aAttributes) throws IOException, JMException;
+
+	/**
+	 * @return True when {@link #readAttributes(List, String[])} reads all MBeans with a single request
+	 */
+	boolean isBulkRead();
+
+	/**
+	 * Read the attributes of multiple MBeans
+	 *
+	 * @param aNames
+	 *            names, which may be patterns
+	 * @param aAttributes
+	 * @return The values by MBean, MBeans which do not exist are absent.
+	 * @throws IOException
+	 */
+	Map<ObjectName, Map<String, Object>> readAttributes(List<ObjectName> aNames, String[] aAttributes) throws IOException;
+
+	/**
+	 * Release the connection
+	 */
+	void close();
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq.jmx;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import com.mpobjects.munin.activemq.Deadline;
+
+/**
+ * Transport using the Jolokia HTTP/JSON protocol. All requests of an operation are sent as a single bulk POST, and
+ * reads use the MBean patterns as is, so the attributes of all destinations of a type are read with one request. The
+ * response is parsed while it is received.
+ */
+public class JolokiaTransport implements JmxTransport {
+	protected static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	protected URL url;
+	protected String authorization;
+
+	/**
+	 * Milliseconds to wait for the connection, 0 means no timeout
+	 */
+	protected int connectTimeout;
+
+	/**
+	 * Milliseconds to wait for a response, 0 means no timeout
+	 */
+	protected int readTimeout;
+
+	/**
+	 * The deadline of the current run, limits the timeouts of every request
+	 */
+	protected Deadline deadline = Deadline.NONE;
+
+	/**
+	 * @param aUrl
+	 *            the URL of the Jolokia agent, e.g. http://localhost:8161/api/jolokia
+	 * @param aUser
+	 *            optional user for basic authentication
+	 * @param aPass
+	 * @param aConnectTimeout
+	 * @param aReadTimeout
+	 * @throws IOException
+	 */
+	public JolokiaTransport(String aUrl, String aUser, String aPass, int aConnectTimeout, int aReadTimeout) throws IOException {
+		super();
+		String base = aUrl.endsWith("/") ? aUrl : aUrl + "/";
+		// errors for single attributes should not fail the whole read
+		url = new URL(base + "?ignoreErrors=true&canonicalNaming=true");
+		if (aUser != null) {
+			authorization = "Basic " + base64(aUser + ":" + (aPass == null ? "" : aPass));
+		}
+		connectTimeout = aConnectTimeout;
+		readTimeout = aReadTimeout;
+	}
+
+	/**
+	 * @param aDeadline
+	 *            the deadline of the current run
+	 */
+	public void setDeadline(Deadline aDeadline) {
+		deadline = aDeadline;
+	}
+
+	/**
+	 * HTTP is stateless, there is no connection to lose.
+	 */
+	public boolean isOpen() {
+		return true;
+	}
+
+	public void ping() throws IOException {
+		List<Map<String, Object>> responses = execute(Collections.singletonList("{\"type\":\"version\"}"));
+		checkStatus(responses.get(0));
+	}
+
+	public boolean isRegistered(ObjectName aName) throws IOException {
+		return queryNames(aName).contains(aName);
+	}
+
+	public Set<ObjectName> queryNames(ObjectName... aPatterns) throws IOException {
+		List<String> requests = new ArrayList<String>();
+		for (ObjectName pattern : aPatterns) {
+			requests.add(String.format("{\"type\":\"search\",\"mbean\":%s}", quote(pattern.getCanonicalName())));
+		}
+		Set<ObjectName> result = new LinkedHashSet<ObjectName>();
+		for (Map<String, Object> response : execute(requests)) {
+			checkStatus(response);
+			if (response.get("value") instanceof List) {
+				for (Object name : (List<?>) response.get("value")) {
+					result.add(toObjectName(String.valueOf(name)));
+				}
+			}
+		}
+		return result;
+	}
+
+	public Map<String, Object> getAttributes(ObjectName aName, String[] aAttributes) throws IOException, JMException {
+		Map<String, Object> result = readAttributes(Collections.singletonList(aName), aAttributes).get(aName);
+		if (result == null) {
+			throw new InstanceNotFoundException(aName.toString());
+		}
+		return result;
+	}
+
+	public boolean isBulkRead() {
+		return true;
+	}
+
+	public Map<ObjectName, Map<String, Object>> readAttributes(List<ObjectName> aNames, String[] aAttributes) throws IOException {
+		StringBuilder attrs = new StringBuilder();
+		for (String attr : aAttributes) {
+			attrs.append(attrs.length() == 0 ? "[" : ",").append(quote(attr));
+		}
+		attrs.append(']');
+		List<String> requests = new ArrayList<String>();
+		for (ObjectName name : aNames) {
+			requests.add(String.format("{\"type\":\"read\",\"mbean\":%s,\"attribute\":%s}", quote(name.getCanonicalName()), attrs));
+		}
+
+		Map<ObjectName, Map<String, Object>> result = new LinkedHashMap<ObjectName, Map<String, Object>>();
+		List<Map<String, Object>> responses = execute(requests);
+		for (int i = 0; i < responses.size(); ++i) {
+			Map<String, Object> response = responses.get(i);
+			if (isNotFound(response)) {
+				continue;
+			}
+			checkStatus(response);
+			if (!(response.get("value") instanceof Map)) {
+				continue;
+			}
+			Map<?, ?> value = (Map<?, ?>) response.get("value");
+			if (aNames.get(i).isPattern()) {
+				// the values by object name
+				for (Entry<?, ?> entry : value.entrySet()) {
+					if (entry.getValue() instanceof Map) {
+						result.put(toObjectName(String.valueOf(entry.getKey())), toAttributes((Map<?, ?>) entry.getValue()));
+					}
+				}
+			} else {
+				result.put(aNames.get(i), toAttributes(value));
+			}
+		}
+		return result;
+	}
+
+	public void close() {
+		// nothing to release
+	}
+
+	/**
+	 * Send the requests as a single bulk request
+	 *
+	 * @param aRequests
+	 *            the JSON of the individual requests
+	 * @return The responses, in the order of the requests
+	 * @throws IOException
+	 */
+	protected List<Map<String, Object>> execute(List<String> aRequests) throws IOException {
+		StringBuilder body = new StringBuilder();
+		for (String request : aRequests) {
+			body.append(body.length() == 0 ? "[" : ",").append(request);
+		}
+		body.append(']');
+
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setConnectTimeout(getTimeout(connectTimeout));
+		conn.setReadTimeout(getTimeout(readTimeout));
+		conn.setRequestMethod("POST");
+		conn.setDoOutput(true);
+		conn.setRequestProperty("Content-Type", "application/json");
+		if (authorization != null) {
+			conn.setRequestProperty("Authorization", authorization);
+		}
+		byte[] data = body.toString().getBytes("UTF-8");
+		conn.setFixedLengthStreamingMode(data.length);
+		OutputStream out = conn.getOutputStream();
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+			conn.disconnect();
+			throw new IOException(String.format("Jolokia request failed: HTTP %d %s", conn.getResponseCode(), conn.getResponseMessage()));
+		}
+		// the stream is read completely and closed, not disconnected, so that the connection can be kept alive
+		InputStream in = conn.getInputStream();
+		try {
+			JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(in, "UTF-8")));
+			List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+			reader.beginArray();
+			while (reader.hasNext()) {
+				Object response = reader.readValue();
+				if (!(response instanceof Map)) {
+					throw new IOException("Unexpected Jolokia response: " + response);
+				}
+				result.add(toMap((Map<?, ?>) response));
+			}
+			if (result.size() != aRequests.size()) {
+				throw new IOException(String.format("Expected %d Jolokia responses, received %d", aRequests.size(), result.size()));
+			}
+			return result;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param aTimeout
+	 *            the configured timeout, 0 for no timeout
+	 * @return The timeout limited to the remaining time of the {@link #deadline}, 0 for no timeout
+	 * @throws SocketTimeoutException
+	 *             when the deadline has passed
+	 */
+	protected int getTimeout(int aTimeout) throws SocketTimeoutException {
+		long timeout = deadline.limit(aTimeout);
+		if (timeout == Long.MAX_VALUE) {
+			return 0;
+		}
+		if (timeout <= 0) {
+			throw new SocketTimeoutException("Deadline reached");
+		}
+		return (int) Math.min(timeout, Integer.MAX_VALUE);
+	}
+
+	protected boolean isNotFound(Map<String, Object> aResponse) {
+		return Long.valueOf(404).equals(aResponse.get("status"));
+	}
+
+	protected void checkStatus(Map<String, Object> aResponse) throws IOException {
+		if (!Long.valueOf(200).equals(aResponse.get("status"))) {
+			throw new IOException(String.format("Jolokia request failed: %s %s", aResponse.get("status"), aResponse.get("error")));
+		}
+	}
+
+	/**
+	 * Convert the JSON values of attributes to the types returned by JMX, for example object name references to
+	 * {@link ObjectName} and arrays of them to ObjectName[].
+	 *
+	 * @param aValues
+	 * @return
+	 * @throws IOException
+	 */
+	protected Map<String, Object> toAttributes(Map<?, ?> aValues) throws IOException {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		for (Entry<?, ?> entry : aValues.entrySet()) {
+			Object value = entry.getValue();
+			if (value instanceof List) {
+				List<?> list = (List<?>) value;
+				ObjectName[] names = new ObjectName[list.size()];
+				for (int i = 0; i < names.length && value != null; ++i) {
+					if (isObjectNameRef(list.get(i))) {
+						names[i] = toObjectName(String.valueOf(((Map<?, ?>) list.get(i)).get("objectName")));
+					} else {
+						value = null;
+					}
+				}
+				if (value != null) {
+					value = names;
+				} else {
+					value = list;
+				}
+			} else if (isObjectNameRef(value)) {
+				value = toObjectName(String.valueOf(((Map<?, ?>) value).get("objectName")));
+			}
+			result.put(String.valueOf(entry.getKey()), value);
+		}
+		return result;
+	}
+
+	protected boolean isObjectNameRef(Object aValue) {
+		return aValue instanceof Map && ((Map<?, ?>) aValue).size() == 1 && ((Map<?, ?>) aValue).containsKey("objectName");
+	}
+
+	protected ObjectName toObjectName(String aName) throws IOException {
+		try {
+			return ObjectName.getInstance(aName);
+		} catch (MalformedObjectNameException e) {
+			throw new IOException("Invalid object name returned: " + aName, e);
+		}
+	}
+
+	protected Map<String, Object> toMap(Map<?, ?> aMap) {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		for (Entry<?, ?> entry : aMap.entrySet()) {
+			result.put(String.valueOf(entry.getKey()), entry.getValue());
+		}
+		return result;
+	}
+
+	/**
+	 * @param aStr
+	 * @return The string as JSON string literal
+	 */
+	protected static String quote(String aStr) {
+		StringBuilder sb = new StringBuilder(aStr.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < aStr.length(); ++i) {
+			char c = aStr.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	protected static String base64(String aStr) throws IOException {
+		byte[] data = aStr.getBytes("UTF-8");
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < data.length; i += 3) {
+			int b = (data[i] & 0xff) << 16;
+			if (i + 1 < data.length) {
+				b |= (data[i + 1] & 0xff) << 8;
+			}
+			if (i + 2 < data.length) {
+				b |= data[i + 2] & 0xff;
+			}
+			sb.append(BASE64[b >> 18 & 0x3f]).append(BASE64[b >> 12 & 0x3f]);
+			sb.append(i + 1 < data.length ? BASE64[b >> 6 & 0x3f] : '=');
+			sb.append(i + 2 < data.length ? BASE64[b & 0x3f] : '=');
+		}
+		return sb.toString();
+	}
+}
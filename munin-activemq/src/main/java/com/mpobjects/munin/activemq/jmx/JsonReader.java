@@ -0,0 +1,263 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq.jmx;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser which reads directly from a stream. Objects are returned as maps, arrays as lists, and numbers
+ * as Long, Double or BigDecimal. The elements of a top level array can be read one at a time through
+ * {@link #beginArray()} and {@link #hasNext()}.
+ */
+public class JsonReader {
+	protected Reader in;
+
+	/**
+	 * The character read ahead, or -2 when there is none
+	 */
+	protected int peeked = -2;
+
+	public JsonReader(Reader aIn) {
+		super();
+		in = aIn;
+	}
+
+	/**
+	 * Consume the start of an array
+	 *
+	 * @throws IOException
+	 */
+	public void beginArray() throws IOException {
+		expect('[');
+	}
+
+	/**
+	 * @return True when the current array has another element, the separator is consumed.
+	 * @throws IOException
+	 */
+	public boolean hasNext() throws IOException {
+		int c = peekToken();
+		if (c == ']') {
+			read();
+			return false;
+		}
+		if (c == ',') {
+			read();
+		}
+		return true;
+	}
+
+	/**
+	 * @return The next value
+	 * @throws IOException
+	 */
+	public Object readValue() throws IOException {
+		int c = peekToken();
+		switch (c) {
+			case '{':
+				return readObject();
+			case '[':
+				return readArray();
+			case '"':
+				return readString();
+			case 't':
+				readLiteral("true");
+				return Boolean.TRUE;
+			case 'f':
+				readLiteral("false");
+				return Boolean.FALSE;
+			case 'n':
+				readLiteral("null");
+				return null;
+			case -1:
+				throw new IOException("Unexpected end of JSON input");
+			default:
+				return readNumber();
+		}
+	}
+
+	protected Map<String, Object> readObject() throws IOException {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		expect('{');
+		if (peekToken() == '}') {
+			read();
+			return result;
+		}
+		do {
+			if (peekToken() != '"') {
+				throw new IOException("Expected a name in JSON object");
+			}
+			String name = readString();
+			expect(':');
+			result.put(name, readValue());
+		} while (separator('}'));
+		return result;
+	}
+
+	protected List<Object> readArray() throws IOException {
+		List<Object> result = new ArrayList<Object>();
+		expect('[');
+		if (peekToken() == ']') {
+			read();
+			return result;
+		}
+		do {
+			result.add(readValue());
+		} while (separator(']'));
+		return result;
+	}
+
+	protected String readString() throws IOException {
+		expect('"');
+		StringBuilder sb = new StringBuilder();
+		for (;;) {
+			int c = read();
+			if (c == -1) {
+				throw new IOException("Unterminated JSON string");
+			}
+			if (c == '"') {
+				return sb.toString();
+			}
+			if (c != '\\') {
+				sb.append((char) c);
+				continue;
+			}
+			c = read();
+			switch (c) {
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					char[] hex = new char[4];
+					for (int i = 0; i < 4; ++i) {
+						hex[i] = (char) read();
+					}
+					try {
+						sb.append((char) Integer.parseInt(new String(hex), 16));
+					} catch (NumberFormatException e) {
+						throw new IOException("Invalid JSON escape: \\u" + new String(hex));
+					}
+					break;
+				case -1:
+					throw new IOException("Unterminated JSON string");
+				default:
+					sb.append((char) c);
+			}
+		}
+	}
+
+	protected Number readNumber() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		boolean integral = true;
+		for (int c = peek(); c != -1 && "+-0123456789.eE".indexOf(c) != -1; c = peek()) {
+			if (c == '.' || c == 'e' || c == 'E') {
+				integral = false;
+			}
+			sb.append((char) read());
+		}
+		if (sb.length() == 0) {
+			throw new IOException("Unexpected character in JSON: " + (char) peek());
+		}
+		try {
+			if (integral && sb.length() < 19) {
+				return Long.valueOf(sb.toString());
+			}
+			if (!integral) {
+				return Double.valueOf(sb.toString());
+			}
+			return new BigDecimal(sb.toString());
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid JSON number: " + sb);
+		}
+	}
+
+	protected void readLiteral(String aLiteral) throws IOException {
+		for (int i = 0; i < aLiteral.length(); ++i) {
+			if (read() != aLiteral.charAt(i)) {
+				throw new IOException("Invalid JSON literal, expected: " + aLiteral);
+			}
+		}
+	}
+
+	/**
+	 * @param aEnd
+	 * @return True when a separator was consumed, false when the end character was consumed.
+	 * @throws IOException
+	 */
+	protected boolean separator(char aEnd) throws IOException {
+		int c = peekToken();
+		read();
+		if (c == ',') {
+			return true;
+		}
+		if (c == aEnd) {
+			return false;
+		}
+		throw new IOException(String.format("Expected ',' or '%s' in JSON", aEnd));
+	}
+
+	protected void expect(char aChar) throws IOException {
+		if (peekToken() != aChar) {
+			throw new IOException(String.format("Expected '%s' in JSON", aChar));
+		}
+		read();
+	}
+
+	/**
+	 * @return The next character which is not whitespace, without consuming it
+	 * @throws IOException
+	 */
+	protected int peekToken() throws IOException {
+		int c = peek();
+		while (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+			read();
+			c = peek();
+		}
+		return c;
+	}
+
+	protected int peek() throws IOException {
+		if (peeked == -2) {
+			peeked = in.read();
+		}
+		return peeked;
+	}
+
+	protected int read() throws IOException {
+		int c = peek();
+		peeked = -2;
+		return c;
+	}
+}
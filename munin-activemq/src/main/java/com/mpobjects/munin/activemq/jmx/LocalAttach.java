@@ -0,0 +1,210 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq.jmx;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Finds the local JMX connector of a JVM on the same host through the Attach API. When the JVM has no local
+ * management agent running one is started. The Attach API is accessed through reflection, as it is not part of the
+ * standard API and lives in tools.jar before Java 9.
+ */
+public class LocalAttach {
+	protected static final String CONNECTOR_ADDRESS = "com.sun.management.jmxremote.localConnectorAddress";
+
+	protected static final String VIRTUAL_MACHINE = "com.sun.tools.attach.VirtualMachine";
+
+	protected static final String DESCRIPTOR = "com.sun.tools.attach.VirtualMachineDescriptor";
+
+	/**
+	 * The loaded VirtualMachine class, so that tools.jar is only loaded once per process
+	 */
+	protected static Class<?> virtualMachine;
+
+	protected Class<?> vmClass;
+	protected Class<?> descriptorClass;
+
+	public LocalAttach() throws IOException {
+		super();
+		vmClass = loadVirtualMachine();
+		try {
+			if (vmClass.getClassLoader() == null) {
+				descriptorClass = Class.forName(DESCRIPTOR);
+			} else {
+				descriptorClass = Class.forName(DESCRIPTOR, true, vmClass.getClassLoader());
+			}
+		} catch (ClassNotFoundException e) {
+			throw new IOException("The Attach API is incomplete, missing: " + DESCRIPTOR);
+		}
+	}
+
+	/**
+	 * Find the local connector address of a JVM
+	 *
+	 * @param aTarget
+	 *            the process id, or a part of the main class or jar and arguments of the JVM
+	 * @return the JMX service URL
+	 * @throws IOException
+	 */
+	public String getConnectorAddress(String aTarget) throws IOException {
+		String id = findProcess(aTarget);
+		Object vm = invoke(vmClass, null, "attach", new Class<?>[] { String.class }, id);
+		try {
+			String address = getLocalConnectorAddress(vm);
+			if (address == null) {
+				startManagementAgent(vm);
+				address = getLocalConnectorAddress(vm);
+			}
+			if (address == null) {
+				throw new IOException("Unable to start the management agent of process " + id);
+			}
+			return address;
+		} finally {
+			invoke(vmClass, vm, "detach", new Class<?>[0]);
+		}
+	}
+
+	/**
+	 * @param aTarget
+	 * @return The id of the single process matching the target
+	 * @throws IOException
+	 */
+	protected String findProcess(String aTarget) throws IOException {
+		if (aTarget.matches("\\d+")) {
+			return aTarget;
+		}
+		List<String> matches = new ArrayList<String>();
+		String self = getOwnProcessId();
+		for (Object descriptor : (List<?>) invoke(vmClass, null, "list", new Class<?>[0])) {
+			String id = (String) invoke(descriptorClass, descriptor, "id", new Class<?>[0]);
+			String displayName = (String) invoke(descriptorClass, descriptor, "displayName", new Class<?>[0]);
+			if (displayName != null && displayName.contains(aTarget) && !id.equals(self)) {
+				matches.add(id + " " + displayName);
+			}
+		}
+		if (matches.isEmpty()) {
+			throw new IOException("No local JVM found matching: " + aTarget);
+		}
+		if (matches.size() > 1) {
+			throw new IOException(String.format("Multiple local JVMs match '%s': %s", aTarget, matches));
+		}
+		return matches.get(0).substring(0, matches.get(0).indexOf(' '));
+	}
+
+	protected String getLocalConnectorAddress(Object aVm) throws IOException {
+		Properties props = (Properties) invoke(vmClass, aVm, "getAgentProperties", new Class<?>[0]);
+		String address = props.getProperty(CONNECTOR_ADDRESS);
+		if (address == null) {
+			// older JVMs publish it as a system property
+			props = (Properties) invoke(vmClass, aVm, "getSystemProperties", new Class<?>[0]);
+			address = props.getProperty(CONNECTOR_ADDRESS);
+		}
+		return address;
+	}
+
+	/**
+	 * Start the local management agent, through startLocalManagementAgent (Java 8+) or by loading the management
+	 * agent jar of the target JVM.
+	 *
+	 * @param aVm
+	 * @throws IOException
+	 */
+	protected void startManagementAgent(Object aVm) throws IOException {
+		try {
+			vmClass.getMethod("startLocalManagementAgent");
+			invoke(vmClass, aVm, "startLocalManagementAgent", new Class<?>[0]);
+			return;
+		} catch (NoSuchMethodException e) {
+			// Java 6 and 7
+		}
+		Properties props = (Properties) invoke(vmClass, aVm, "getSystemProperties", new Class<?>[0]);
+		File agent = new File(props.getProperty("java.home"), "lib" + File.separator + "management-agent.jar");
+		invoke(vmClass, aVm, "loadAgent", new Class<?>[] { String.class, String.class }, agent.getPath(), "com.sun.management.jmxremote");
+	}
+
+	/**
+	 * @return The process id of this JVM, or null when it cannot be determined
+	 */
+	protected String getOwnProcessId() {
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		int idx = name.indexOf('@');
+		return idx == -1 ? null : name.substring(0, idx);
+	}
+
+	/**
+	 * Invoke a method of the Attach API. The method is looked up on the public API class, the implementation classes
+	 * are not accessible.
+	 */
+	protected Object invoke(Class<?> aClass, Object aTarget, String aMethod, Class<?>[] aTypes, Object... aArgs) throws IOException {
+		try {
+			Method method = aClass.getMethod(aMethod, aTypes);
+			return method.invoke(aTarget, aArgs);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(String.format("Attach API call %s failed: %s", aMethod, e.getCause()), e.getCause());
+		} catch (Exception e) {
+			throw new IOException(String.format("Attach API call %s failed: %s", aMethod, e), e);
+		}
+	}
+
+	/**
+	 * Load the Attach API, from tools.jar of the JDK when it is not available otherwise. The class is loaded once, a
+	 * new class loader for every connection would never be released.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	protected static synchronized Class<?> loadVirtualMachine() throws IOException {
+		if (virtualMachine == null) {
+			virtualMachine = findVirtualMachine();
+		}
+		return virtualMachine;
+	}
+
+	/**
+	 * @return
+	 * @throws IOException
+	 */
+	protected static Class<?> findVirtualMachine() throws IOException {
+		try {
+			return Class.forName(VIRTUAL_MACHINE);
+		} catch (ClassNotFoundException e) {
+			// not on the class path
+		}
+		File tools = new File(System.getProperty("java.home"), ".." + File.separator + "lib" + File.separator + "tools.jar");
+		if (!tools.isFile()) {
+			throw new IOException("The Attach API is not available, a JDK is required: " + tools);
+		}
+		try {
+			ClassLoader loader = new URLClassLoader(new URL[] { tools.toURI().toURL() });
+			return Class.forName(VIRTUAL_MACHINE, true, loader);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("The Attach API is not available in " + tools);
+		}
+	}
+}
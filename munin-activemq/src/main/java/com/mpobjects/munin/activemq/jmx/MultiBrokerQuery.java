@@ -0,0 +1,537 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq.jmx;
+
+import java.io.ByteArrayOutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.ObjectName;
+
+import com.mpobjects.munin.activemq.Deadline;
+import com.mpobjects.munin.activemq.FieldWriter;
+import com.mpobjects.munin.activemq.Output;
+import com.mpobjects.munin.activemq.QueryMode;
+
+/**
+ * Queries multiple brokers concurrently and combines their destinations in a single set of graphs. The brokers are
+ * configured through BROKERS, a space separated list of <code>[label=][user[:pass]@]host[:port][/brokerName]</code>
+ * entries for RMI, or <code>[label=]http://host:port/path[#brokerName]</code> entries for Jolokia. Field names and
+ * labels are prefixed with the label, which defaults to the broker name when it is given, or else to the host and
+ * port.
+ */
+public class MultiBrokerQuery extends AmqJmxQuery {
+	/**
+	 * The pattern of a broker entry: label=user:pass@host:port/brokerName
+	 */
+	protected static final Pattern BROKER_PATTERN = Pattern.compile("(?:(\\w+)=)?(?:([^:@]+)(?::([^@]*))?@)?([^:/@]+)(?::(\\d+))?(?:/(.+))?");
+
+	/**
+	 * The pattern of a broker entry using Jolokia: label=http://host:port/path#brokerName
+	 */
+	protected static final Pattern JOLOKIA_PATTERN = Pattern.compile("(?:(\\w+)=)?(https?://[^#]+)(?:#(.+))?");
+
+	/**
+	 * Milliseconds to wait for the brokers after the deadline expired
+	 */
+	protected static final long DEADLINE_GRACE = 500;
+
+	protected List<AmqJmxQuery> brokers;
+
+	/**
+	 * Maximum number of brokers which are queried at the same time. Default 8.
+	 */
+	protected int brokerThreads;
+
+	public MultiBrokerQuery(Output aOutput) {
+		super(aOutput);
+	}
+
+	/**
+	 * @param aOutput
+	 * @param aMode
+	 */
+	public MultiBrokerQuery(Output aOutput, QueryMode aMode) {
+		this(aOutput);
+		setMode(aMode);
+	}
+
+	/**
+	 * @return True when multiple brokers have been configured through BROKERS.
+	 */
+	public static boolean isConfigured() {
+		String brokers = System.getenv("BROKERS");
+		if (brokers == null) {
+			brokers = System.getProperty("BROKERS");
+		}
+		return brokers != null && brokers.trim().length() > 0;
+	}
+
+	/**
+	 * @return the brokers
+	 */
+	public List<AmqJmxQuery> getBrokers() {
+		return brokers;
+	}
+
+	@Override
+	public void setMode(QueryMode aMode) {
+		super.setMode(aMode);
+		if (brokers != null) {
+			for (AmqJmxQuery broker : brokers) {
+				broker.setMode(aMode);
+			}
+		}
+	}
+
+	@Override
+	public void setOutput(Output aOutput) {
+		super.setOutput(aOutput);
+		if (brokers != null) {
+			for (AmqJmxQuery broker : brokers) {
+				broker.setOutput(aOutput);
+			}
+		}
+	}
+
+	@Override
+	public void setDeadline(Deadline aDeadline) {
+		super.setDeadline(aDeadline);
+		if (brokers != null) {
+			for (AmqJmxQuery broker : brokers) {
+				broker.setDeadline(aDeadline);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		for (AmqJmxQuery broker : brokers) {
+			broker.close();
+		}
+	}
+
+	@Override
+	public boolean connect() {
+		boolean result = false;
+		for (AmqJmxQuery broker : brokers) {
+			result |= broker.connect();
+		}
+		return result;
+	}
+
+	@Override
+	public void printAutoConf(List<String> aDests) {
+		List<String> failed = new ArrayList<String>();
+		for (AmqJmxQuery broker : brokers) {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			Output brokerOutput = new Output(new FieldWriter(buffer), output.err);
+			broker.setOutput(brokerOutput);
+			try {
+				broker.printAutoConf(aDests);
+			} finally {
+				brokerOutput.flush();
+				broker.setOutput(output);
+			}
+			String result = buffer.toString().trim();
+			if (!result.startsWith("yes")) {
+				failed.add(broker.getBrokerLabel() + ": " + result);
+			}
+		}
+		if (failed.isEmpty()) {
+			output.out.println("yes");
+		} else {
+			output.out.println("no (failed brokers:");
+			for (String msg : failed) {
+				output.out.println(msg);
+			}
+			output.out.println(")");
+		}
+	}
+
+	@Override
+	public void printDestinations() {
+		for (AmqJmxQuery broker : brokers) {
+			output.out.println("# " + broker.getBrokerLabel());
+			broker.printDestinations();
+		}
+	}
+
+	@Override
+	public void printConfig(List<String> aDests) {
+		if (mode == null) {
+			throw new IllegalStateException("No query mode was set");
+		}
+		if (!isDirtyConfig()) {
+			printCachedBrokersConfig(aDests, collect(aDests, false));
+			return;
+		}
+		List<BrokerResult> results;
+		setDeadline(Deadline.in(fetchTimeout * 1000L));
+		try {
+			results = collect(aDests, true);
+		} finally {
+			setDeadline(Deadline.NONE);
+		}
+		if (mode == QueryMode.MULTIGRAPH) {
+			for (QueryMode graphMode : QueryMode.graphModes()) {
+				println(formatMultigraph(graphMode));
+				printBrokersConfig(graphMode, results);
+				printBrokersValues(graphMode, results);
+			}
+		} else {
+			printBrokersConfig(mode, results);
+			printBrokersValues(mode, results);
+		}
+	}
+
+	/**
+	 * Print the configuration from the plugin state when it was generated for the same destinations of all brokers,
+	 * otherwise generate it and store it. When a broker cannot be reached the last stored configuration is used, so
+	 * that the fields of that broker are kept.
+	 *
+	 * @param aDests
+	 * @param aResults
+	 */
+	protected void printCachedBrokersConfig(List<String> aDests, List<BrokerResult> aResults) {
+		StringBuilder key = new StringBuilder();
+		boolean complete = aResults.size() == brokers.size();
+		for (BrokerResult result : aResults) {
+			if (result.destinations == null) {
+				complete = false;
+			} else {
+				key.append(result.broker.getConfigKey(result.destinations)).append(' ');
+			}
+		}
+		String config = loadConfig(aDests, complete ? key.toString() : null);
+		if (config == null) {
+			config = formatBrokersConfig(aResults);
+			if (complete) {
+				storeConfig(aDests, key.toString(), config);
+			}
+		} else if (!complete) {
+			output.err.println("Not all brokers could be reached, using the cached configuration");
+		}
+		output.getWriter().print(config);
+	}
+
+	/**
+	 * @param aResults
+	 * @return The configuration for the current mode
+	 */
+	protected String formatBrokersConfig(List<BrokerResult> aResults) {
+		Output original = output;
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		Output configOutput = new Output(new FieldWriter(buffer), original.err);
+		setOutput(configOutput);
+		try {
+			if (mode == QueryMode.MULTIGRAPH) {
+				for (QueryMode graphMode : QueryMode.graphModes()) {
+					println(formatMultigraph(graphMode));
+					printBrokersConfig(graphMode, aResults);
+				}
+			} else {
+				printBrokersConfig(mode, aResults);
+			}
+			configOutput.flush();
+		} finally {
+			setOutput(original);
+		}
+		return buffer.toString();
+	}
+
+	@Override
+	public void printValues(List<String> aDests) {
+		if (mode == null) {
+			throw new IllegalStateException("No query mode was set");
+		}
+		setDeadline(Deadline.in(fetchTimeout * 1000L));
+		List<BrokerResult> results;
+		try {
+			results = collect(aDests, true);
+		} finally {
+			setDeadline(Deadline.NONE);
+		}
+		if (mode == QueryMode.MULTIGRAPH) {
+			for (QueryMode graphMode : QueryMode.graphModes()) {
+				println(formatMultigraph(graphMode));
+				printBrokersValues(graphMode, results);
+			}
+		} else {
+			printBrokersValues(mode, results);
+		}
+	}
+
+	@Override
+	public void printMetrics(List<String> aDests) {
+		setDeadline(Deadline.in(fetchTimeout * 1000L));
+		List<BrokerResult> results;
+		try {
+			results = collect(aDests, true);
+		} finally {
+			setDeadline(Deadline.NONE);
+		}
+		printMetricHeader("activemq_up", "gauge", "Whether the broker could be reached.");
+		for (BrokerResult result : results) {
+			result.broker.printMetricUp(result.destinations != null);
+		}
+		for (String attr : getAttributeNames(QueryMode.MULTIGRAPH)) {
+			String[] metric = METRICS.get(attr);
+			printMetricHeader(metric[0], metric[1], metric[2]);
+			for (BrokerResult result : results) {
+				if (result.destinations != null) {
+					result.broker.printMetricSamples(attr, result.destinations, result.values);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void printGraphite(List<String> aDests, String aPrefix, long aTimestamp) {
+		setDeadline(Deadline.in(fetchTimeout * 1000L));
+		List<BrokerResult> results;
+		try {
+			results = collect(aDests, true);
+		} finally {
+			setDeadline(Deadline.NONE);
+		}
+		for (BrokerResult result : results) {
+			if (result.destinations != null) {
+				result.broker.printGraphiteSamples(aPrefix, aTimestamp, result.destinations, result.values);
+			}
+		}
+	}
+
+	/**
+	 * Print the configuration of a single graph for all brokers
+	 *
+	 * @param aMode
+	 * @param aResults
+	 */
+	protected void printBrokersConfig(QueryMode aMode, List<BrokerResult> aResults) {
+		printConfigHeader(aMode);
+		for (BrokerResult result : aResults) {
+			if (result.destinations != null) {
+				result.broker.printConfigFields(aMode, result.destinations);
+			}
+		}
+	}
+
+	/**
+	 * Print the values of a single graph for all brokers
+	 *
+	 * @param aMode
+	 * @param aResults
+	 */
+	protected void printBrokersValues(QueryMode aMode, List<BrokerResult> aResults) {
+		for (BrokerResult result : aResults) {
+			if (result.destinations != null) {
+				result.broker.printValues(aMode, result.destinations, result.values);
+			}
+		}
+	}
+
+	/**
+	 * Resolve the destinations, and optionally fetch their values, on all brokers concurrently.
+	 *
+	 * @param aDests
+	 * @param aFetch
+	 *            when true also fetch the values
+	 * @return The results in the order of the configured brokers. A broker which could not be queried in time has no
+	 *         destinations.
+	 */
+	protected List<BrokerResult> collect(final List<String> aDests, final boolean aFetch) {
+		List<Callable<BrokerResult>> tasks = new ArrayList<Callable<BrokerResult>>();
+		for (final AmqJmxQuery broker : brokers) {
+			tasks.add(new Callable<BrokerResult>() {
+				public BrokerResult call() {
+					BrokerResult result = new BrokerResult(broker);
+					if (!aFetch && broker.isDiscoveryCurrent() && broker.loadNamingScheme()) {
+						// the destinations and naming scheme are known, the broker is not needed
+						result.destinations = broker.resolveDestinations(aDests);
+						return result;
+					}
+					if (!broker.connect()) {
+						output.err.println("Unable to connect to broker: " + broker.getBrokerLabel());
+						return result;
+					}
+					result.destinations = broker.resolveDestinations(aDests);
+					if (aFetch) {
+						result.values = broker.fetchValues(result.destinations, broker.getAttributeNames());
+					}
+					return result;
+				}
+			});
+		}
+
+		List<BrokerResult> results = new ArrayList<BrokerResult>();
+		ExecutorService executor = createExecutor(Math.min(brokerThreads, tasks.size()));
+		try {
+			List<Future<BrokerResult>> futures;
+			if (deadline.remaining() == Long.MAX_VALUE) {
+				futures = executor.invokeAll(tasks);
+			} else {
+				// the brokers return their partial results at the deadline, allow them to do so
+				futures = executor.invokeAll(tasks, deadline.remaining() + DEADLINE_GRACE, TimeUnit.MILLISECONDS);
+			}
+			for (int i = 0; i < futures.size(); ++i) {
+				try {
+					results.add(futures.get(i).get());
+				} catch (CancellationException e) {
+					output.err.println("Fetch timeout reached, skipping broker: " + brokers.get(i).getBrokerLabel());
+					// without destinations, so that it is reported as down
+					results.add(new BrokerResult(brokers.get(i)));
+				} catch (ExecutionException e) {
+					output.err.println("Failed to query broker: " + brokers.get(i).getBrokerLabel());
+					e.getCause().printStackTrace(output.err);
+					results.add(new BrokerResult(brokers.get(i)));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+		}
+		return results;
+	}
+
+	@Override
+	protected void init() {
+		super.init();
+		Map<String, String> env = System.getenv();
+		if (env.get("BROKER_THREADS") != null) {
+			brokerThreads = Integer.parseInt(env.get("BROKER_THREADS"));
+		} else {
+			brokerThreads = Integer.getInteger("BROKER_THREADS", 8);
+		}
+		String config = env.get("BROKERS");
+		if (config == null) {
+			config = System.getProperty("BROKERS", "");
+		}
+		brokers = new ArrayList<AmqJmxQuery>();
+		// the labels end up in the field names, two brokers with the same label would be merged by munin
+		Map<String, String> labels = new HashMap<String, String>();
+		for (String entry : config.trim().split("\\s+")) {
+			if (entry.length() > 0) {
+				AmqJmxQuery broker = createBroker(entry);
+				String field = DestinationCatalog.sanitize(broker.getBrokerLabel());
+				if (labels.containsKey(field)) {
+					throw new IllegalArgumentException(String.format("Brokers %s and %s have the same label, set a label with label=", labels.get(field), entry));
+				}
+				labels.put(field, entry);
+				brokers.add(broker);
+			}
+		}
+	}
+
+	/**
+	 * @return A hash of the state names of all brokers, the names themselves could be too long for a file name
+	 */
+	@Override
+	public String getStateName() {
+		StringBuilder sb = new StringBuilder();
+		for (AmqJmxQuery broker : brokers) {
+			sb.append(broker.getStateName()).append(' ');
+		}
+		return String.format("brokers_%08x", sb.toString().hashCode());
+	}
+
+	/**
+	 * Create the query for a single broker entry. Without a label the broker is labelled with its broker name when it
+	 * is given, or else with its host and port.
+	 *
+	 * @param aEntry
+	 * @return
+	 */
+	protected AmqJmxQuery createBroker(String aEntry) {
+		AmqJmxQuery broker = new AmqJmxQuery(output, mode);
+		Matcher matcher = JOLOKIA_PATTERN.matcher(aEntry);
+		if (matcher.matches()) {
+			broker.setJolokiaUrl(matcher.group(2));
+			broker.setLocalTarget(null);
+			if (matcher.group(1) != null) {
+				broker.setBrokerLabel(matcher.group(1));
+			} else if (matcher.group(3) != null) {
+				broker.setBrokerLabel(matcher.group(3));
+			} else {
+				try {
+					URL url = new URL(matcher.group(2));
+					broker.setBrokerLabel(url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort());
+				} catch (MalformedURLException e) {
+					throw new IllegalArgumentException(String.format("Invalid broker: %s", aEntry), e);
+				}
+			}
+			if (matcher.group(3) != null) {
+				broker.setBrokerName(matcher.group(3));
+			}
+			return broker;
+		}
+		matcher = BROKER_PATTERN.matcher(aEntry);
+		if (!matcher.matches()) {
+			throw new IllegalArgumentException(String.format("Invalid broker: %s", aEntry));
+		}
+		// JOLOKIA_URL and JMX_LOCAL only apply to the single broker
+		broker.setJolokiaUrl(null);
+		broker.setLocalTarget(null);
+		if (matcher.group(2) != null) {
+			broker.setUser(matcher.group(2));
+			broker.setPass(matcher.group(3));
+		}
+		broker.setHost(matcher.group(4));
+		if (matcher.group(5) != null) {
+			broker.setPort(Integer.parseInt(matcher.group(5)));
+		}
+		if (matcher.group(6) != null) {
+			broker.setBrokerName(matcher.group(6));
+		}
+		if (matcher.group(1) != null) {
+			broker.setBrokerLabel(matcher.group(1));
+		} else if (matcher.group(6) != null) {
+			broker.setBrokerLabel(matcher.group(6));
+		} else if (matcher.group(5) != null) {
+			broker.setBrokerLabel(matcher.group(4) + ":" + matcher.group(5));
+		} else {
+			broker.setBrokerLabel(matcher.group(4));
+		}
+		return broker;
+	}
+
+	/**
+	 * The information collected from a single broker
+	 */
+	protected static class BrokerResult {
+		protected AmqJmxQuery broker;
+		protected List<ObjectName> destinations;
+		protected Map<ObjectName, Map<String, Object>> values;
+
+		public BrokerResult(AmqJmxQuery aBroker) {
+			broker = aBroker;
+		}
+	}
+}
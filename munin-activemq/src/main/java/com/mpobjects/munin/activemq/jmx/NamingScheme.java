@@ -34,6 +34,10 @@ public class NamingScheme {
 		return String.format("org.apache.activemq:BrokerName=%s,Type=%s,Destination=%s", aBrokerName, aType, aName);
 	}
 
+	public String brokerName() {
+		return "BrokerName";
+	}
+
 	public String destinationName() {
 		return "Destination";
 	}
@@ -36,6 +36,11 @@ public class NamingScheme58 extends NamingScheme {
 		return String.format("org.apache.activemq:type=Broker,brokerName=%s,destinationType=%s,destinationName=%s", aBrokerName, aType, aName);
 	}
 
+	@Override
+	public String brokerName() {
+		return "brokerName";
+	}
+
 	@Override
 	public String destinationName() {
 		return "destinationName";
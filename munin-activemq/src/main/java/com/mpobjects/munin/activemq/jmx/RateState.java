@@ -0,0 +1,221 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq.jmx;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+/**
+ * The previous counter values of the destinations, used to compute rates. The values are kept in a memory mapped file
+ * of fixed size records, which form a hash table with open addressing on a 64-bit hash of the destination key. Only
+ * the records of the destinations which are read are touched, regardless of the number of destinations in the file.
+ * The table is rebuilt with twice the capacity when it is half full. The file is locked while it is open.
+ */
+public class RateState {
+	protected static final int MAGIC = 0x414d5152;
+
+	/**
+	 * Header: magic, capacity, number of used records, reserved
+	 */
+	protected static final int HEADER_SIZE = 16;
+
+	/**
+	 * The number of values per record
+	 */
+	public static final int VALUES = 3;
+
+	/**
+	 * Record: key hash, time, values
+	 */
+	protected static final int RECORD_SIZE = 16 + VALUES * 8;
+
+	protected static final int INITIAL_CAPACITY = 256;
+
+	protected File file;
+
+	protected RandomAccessFile raf;
+	protected FileLock lock;
+	protected MappedByteBuffer buffer;
+	protected int capacity;
+	protected int count;
+
+	/**
+	 * @param aFile
+	 */
+	public RateState(File aFile) {
+		super();
+		file = aFile;
+	}
+
+	/**
+	 * Open and lock the file, it is created when it does not exist or is not valid.
+	 *
+	 * @throws IOException
+	 */
+	public void open() throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		lock = raf.getChannel().lock();
+		if (raf.length() >= HEADER_SIZE) {
+			raf.seek(0);
+			if (raf.readInt() == MAGIC) {
+				capacity = raf.readInt();
+				count = raf.readInt();
+				if (Integer.bitCount(capacity) == 1 && raf.length() == HEADER_SIZE + (long) capacity * RECORD_SIZE) {
+					map();
+					return;
+				}
+			}
+		}
+		// new or unusable
+		capacity = INITIAL_CAPACITY;
+		count = 0;
+		raf.setLength(0);
+		raf.setLength(HEADER_SIZE + (long) capacity * RECORD_SIZE);
+		map();
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, capacity);
+		buffer.putInt(8, count);
+	}
+
+	protected void map() throws IOException {
+		buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+	}
+
+	/**
+	 * Replace the values of a destination.
+	 *
+	 * @param aKey
+	 *            the key of the destination
+	 * @param aTime
+	 *            the time the values were read, in milliseconds
+	 * @param aValues
+	 *            the new values, {@link #VALUES} long
+	 * @param aPrevious
+	 *            receives the previous values
+	 * @return The time of the previous values, or -1 when there are none
+	 * @throws IOException
+	 */
+	public long update(String aKey, long aTime, long[] aValues, long[] aPrevious) throws IOException {
+		long hash = hash(aKey);
+		int slot = find(hash);
+		int pos = HEADER_SIZE + slot * RECORD_SIZE;
+		long previousTime = -1;
+		if (buffer.getLong(pos) == hash) {
+			previousTime = buffer.getLong(pos + 8);
+			for (int i = 0; i < VALUES; ++i) {
+				aPrevious[i] = buffer.getLong(pos + 16 + i * 8);
+			}
+		} else {
+			if ((count + 1) * 2 > capacity) {
+				grow();
+				slot = find(hash);
+				pos = HEADER_SIZE + slot * RECORD_SIZE;
+			}
+			++count;
+			buffer.putInt(8, count);
+			buffer.putLong(pos, hash);
+		}
+		buffer.putLong(pos + 8, aTime);
+		for (int i = 0; i < VALUES; ++i) {
+			buffer.putLong(pos + 16 + i * 8, aValues[i]);
+		}
+		return previousTime;
+	}
+
+	/**
+	 * @param aHash
+	 * @return The slot containing the hash, or the empty slot where it belongs
+	 */
+	protected int find(long aHash) {
+		int mask = capacity - 1;
+		int slot = (int) (aHash ^ aHash >>> 32) & mask;
+		while (true) {
+			long key = buffer.getLong(HEADER_SIZE + slot * RECORD_SIZE);
+			if (key == aHash || key == 0) {
+				return slot;
+			}
+			slot = slot + 1 & mask;
+		}
+	}
+
+	/**
+	 * Double the capacity, the records are copied into a new table in memory which then replaces the file content.
+	 *
+	 * @throws IOException
+	 */
+	protected void grow() throws IOException {
+		byte[] old = new byte[capacity * RECORD_SIZE];
+		buffer.position(HEADER_SIZE);
+		buffer.get(old);
+		int oldCapacity = capacity;
+		capacity *= 2;
+		raf.setLength(HEADER_SIZE + (long) capacity * RECORD_SIZE);
+		map();
+		byte[] empty = new byte[capacity * RECORD_SIZE];
+		buffer.position(HEADER_SIZE);
+		buffer.put(empty);
+		buffer.putInt(4, capacity);
+		ByteBuffer records = ByteBuffer.wrap(old);
+		for (int i = 0; i < oldCapacity; ++i) {
+			long hash = records.getLong(i * RECORD_SIZE);
+			if (hash != 0) {
+				int pos = HEADER_SIZE + find(hash) * RECORD_SIZE;
+				buffer.position(pos);
+				buffer.put(old, i * RECORD_SIZE, RECORD_SIZE);
+			}
+		}
+	}
+
+	/**
+	 * Release the file. The changes are not forced to disk, the operating system writes them like any other file.
+	 */
+	public void close() {
+		buffer = null;
+		try {
+			if (lock != null) {
+				lock.release();
+			}
+			if (raf != null) {
+				raf.close();
+			}
+		} catch (IOException e) {
+			// nothing to do
+		}
+		lock = null;
+		raf = null;
+	}
+
+	/**
+	 * 64-bit FNV-1a hash, never 0 as that marks an empty record.
+	 *
+	 * @param aKey
+	 * @return
+	 */
+	protected static long hash(String aKey) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < aKey.length(); ++i) {
+			hash ^= aKey.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash == 0 ? 1 : hash;
+	}
+}
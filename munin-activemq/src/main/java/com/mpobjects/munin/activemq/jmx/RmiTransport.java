@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq.jmx;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.Attribute;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.Query;
+import javax.management.QueryExp;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+
+/**
+ * Transport using a JMX remote connector, usually RMI. The connection is watched through the connection notifications
+ * of the connector.
+ */
+public class RmiTransport implements JmxTransport {
+	protected JMXConnector connector;
+	protected MBeanServerConnection connection;
+
+	/**
+	 * Set by {@link #connectionListener} when the connector reports the connection closed or failed.
+	 */
+	protected volatile boolean connectionLost;
+
+	protected NotificationListener connectionListener = new NotificationListener() {
+		public void handleNotification(Notification aNotification, Object aHandback) {
+			if (JMXConnectionNotification.CLOSED.equals(aNotification.getType()) || JMXConnectionNotification.FAILED.equals(aNotification.getType())) {
+				connectionLost = true;
+			}
+		}
+	};
+
+	/**
+	 * @param aConnector
+	 *            a connected connector
+	 * @throws IOException
+	 */
+	public RmiTransport(JMXConnector aConnector) throws IOException {
+		super();
+		connector = aConnector;
+		connector.addConnectionNotificationListener(connectionListener, null, null);
+		connection = connector.getMBeanServerConnection();
+	}
+
+	public boolean isOpen() {
+		return !connectionLost;
+	}
+
+	public void ping() throws IOException {
+		connection.getMBeanCount();
+	}
+
+	public boolean isRegistered(ObjectName aName) throws IOException {
+		return connection.isRegistered(aName);
+	}
+
+	/**
+	 * Multiple patterns are combined in a single query which is evaluated by the server.
+	 */
+	public Set<ObjectName> queryNames(ObjectName... aPatterns) throws IOException {
+		if (aPatterns.length == 1) {
+			return connection.queryNames(aPatterns[0], null);
+		}
+		QueryExp query = null;
+		for (ObjectName pattern : aPatterns) {
+			if (query == null) {
+				query = pattern;
+			} else {
+				query = Query.or(query, pattern);
+			}
+		}
+		if (query == null) {
+			return Collections.emptySet();
+		}
+		return connection.queryNames(null, query);
+	}
+
+	public Map<String, Object> getAttributes(ObjectName aName, String[] aAttributes) throws IOException, JMException {
+		Map<String, Object> result = new HashMap<String, Object>();
+		for (Attribute attr : connection.getAttributes(aName, aAttributes).asList()) {
+			result.put(attr.getName(), attr.getValue());
+		}
+		return result;
+	}
+
+	public boolean isBulkRead() {
+		return false;
+	}
+
+	/**
+	 * Reads the MBeans one after the other.
+	 */
+	public Map<ObjectName, Map<String, Object>> readAttributes(List<ObjectName> aNames, String[] aAttributes) throws IOException {
+		Map<ObjectName, Map<String, Object>> result = new LinkedHashMap<ObjectName, Map<String, Object>>();
+		for (ObjectName name : aNames) {
+			Set<ObjectName> names = name.isPattern() ? queryNames(name) : Collections.singleton(name);
+			for (ObjectName mbean : names) {
+				try {
+					result.put(mbean, getAttributes(mbean, aAttributes));
+				} catch (InstanceNotFoundException e) {
+					// unregistered in the mean time
+				} catch (JMException e) {
+					throw new IOException("Unable to read " + mbean, e);
+				}
+			}
+		}
+		return result;
+	}
+
+	public void close() {
+		try {
+			connector.removeConnectionNotificationListener(connectionListener);
+		} catch (Exception e) {
+			// not registered
+		}
+		try {
+			connector.close();
+		} catch (IOException e) {
+			// already broken
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq.jmx;
+
+import java.util.PriorityQueue;
+
+import javax.management.ObjectName;
+
+/**
+ * Selects the entries with the highest values from a stream. Only the current top entries are kept in a min-heap, the
+ * values which drop out are added to a single total for all other entries. Memory use depends on the size of the
+ * selection, not on the number of entries offered.
+ */
+public class TopSelection {
+	/**
+	 * A selected entry
+	 */
+	public static class Entry implements Comparable<Entry> {
+		protected ObjectName name;
+		protected double value;
+
+		protected Entry(ObjectName aName, double aValue) {
+			super();
+			name = aName;
+			value = aValue;
+		}
+
+		public ObjectName getName() {
+			return name;
+		}
+
+		public double getValue() {
+			return value;
+		}
+
+		/**
+		 * Ordered by value, equal values by name in reverse so that the first name ranks highest.
+		 */
+		public int compareTo(Entry aOther) {
+			int result = Double.compare(value, aOther.value);
+			if (result == 0) {
+				result = aOther.name.compareTo(name);
+			}
+			return result;
+		}
+	}
+
+	protected int size;
+
+	protected PriorityQueue<Entry> heap;
+
+	protected double other;
+
+	protected int otherCount;
+
+	/**
+	 * True while all offered values are integers
+	 */
+	protected boolean integral = true;
+
+	/**
+	 * @param aSize
+	 *            the number of entries to select
+	 */
+	public TopSelection(int aSize) {
+		super();
+		if (aSize < 1) {
+			throw new IllegalArgumentException("Size must be at least 1");
+		}
+		size = aSize;
+		heap = new PriorityQueue<Entry>(aSize);
+	}
+
+	/**
+	 * @param aName
+	 * @param aValue
+	 */
+	public void offer(ObjectName aName, Number aValue) {
+		integral &= aValue instanceof Long || aValue instanceof Integer;
+		Entry entry = new Entry(aName, aValue.doubleValue());
+		if (heap.size() < size) {
+			heap.add(entry);
+			return;
+		}
+		if (entry.compareTo(heap.peek()) > 0) {
+			Entry lowest = heap.poll();
+			heap.add(entry);
+			entry = lowest;
+		}
+		other += entry.value;
+		++otherCount;
+	}
+
+	/**
+	 * @return The selected entries, highest value first. Fewer than {@link #getSize()} when fewer entries were
+	 *         offered.
+	 */
+	public Entry[] getTop() {
+		Entry[] result = new Entry[heap.size()];
+		PriorityQueue<Entry> copy = new PriorityQueue<Entry>(heap);
+		for (int i = result.length - 1; i >= 0; --i) {
+			result[i] = copy.poll();
+		}
+		return result;
+	}
+
+	/**
+	 * @return The total of the entries which were not selected
+	 */
+	public double getOther() {
+		return other;
+	}
+
+	/**
+	 * @return The number of entries which were not selected
+	 */
+	public int getOtherCount() {
+		return otherCount;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return True when all offered values were integers
+	 */
+	public boolean isIntegral() {
+		return integral;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq.push;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Sends batches to Graphite using the plaintext protocol over a TCP connection which is kept open. A batch is written
+ * at once, the lines are pipelined without waiting for the receiver.
+ */
+public class GraphiteTarget implements PushTarget {
+	protected String host;
+	protected int port;
+
+	/**
+	 * Milliseconds to wait for the connection
+	 */
+	protected int connectTimeout;
+
+	protected Socket socket;
+	protected OutputStream out;
+
+	/**
+	 * @param aHost
+	 * @param aPort
+	 * @param aConnectTimeout
+	 */
+	public GraphiteTarget(String aHost, int aPort, int aConnectTimeout) {
+		super();
+		host = aHost;
+		port = aPort;
+		connectTimeout = aConnectTimeout;
+	}
+
+	/**
+	 * The batch is sent again over a new connection when the existing connection turns out to be broken.
+	 */
+	public void send(byte[] aBatch) throws IOException {
+		boolean reused = socket != null;
+		try {
+			write(aBatch);
+		} catch (IOException e) {
+			close();
+			if (!reused) {
+				throw e;
+			}
+			// the receiver may have closed an idle connection
+			write(aBatch);
+		}
+	}
+
+	protected void write(byte[] aBatch) throws IOException {
+		if (socket == null) {
+			socket = new Socket();
+			socket.connect(new InetSocketAddress(host, port), connectTimeout);
+			socket.setTcpNoDelay(false);
+			out = socket.getOutputStream();
+		}
+		out.write(aBatch);
+		out.flush();
+	}
+
+	public void close() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already broken
+			}
+		}
+		socket = null;
+		out = null;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("graphite %s:%d", host, port);
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq.push;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Hands batches over to a sender thread through a bounded queue. When the targets cannot keep up the oldest batch is
+ * dropped, submitting never blocks.
+ */
+public class PushPipeline {
+	protected List<PushTarget> targets;
+	protected BlockingQueue<byte[]> queue;
+	protected PrintStream err;
+
+	protected Thread sender;
+
+	/**
+	 * Number of batches dropped because the queue was full
+	 */
+	protected int dropped;
+
+	/**
+	 * @param aTargets
+	 * @param aCapacity
+	 *            the maximum number of batches waiting to be sent
+	 * @param aErr
+	 *            where send failures are reported
+	 */
+	public PushPipeline(List<PushTarget> aTargets, int aCapacity, PrintStream aErr) {
+		super();
+		targets = new ArrayList<PushTarget>(aTargets);
+		queue = new ArrayBlockingQueue<byte[]>(Math.max(aCapacity, 1));
+		err = aErr;
+	}
+
+	/**
+	 * Start the sender thread
+	 */
+	public void start() {
+		sender = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (!Thread.currentThread().isInterrupted()) {
+						send(queue.take());
+					}
+				} catch (InterruptedException e) {
+					// stopped
+				} finally {
+					for (PushTarget target : targets) {
+						target.close();
+					}
+				}
+			}
+		}, "munin-activemq-push");
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	/**
+	 * Queue a batch for sending, the oldest queued batch is dropped when the queue is full.
+	 *
+	 * @param aBatch
+	 */
+	public void submit(byte[] aBatch) {
+		while (!queue.offer(aBatch)) {
+			if (queue.poll() != null) {
+				++dropped;
+				err.println(String.format("Push queue full, dropped a batch (%d in total)", dropped));
+			}
+		}
+	}
+
+	/**
+	 * Send a batch to all targets. A failing target does not affect the others, the batch is not retried.
+	 *
+	 * @param aBatch
+	 */
+	protected void send(byte[] aBatch) {
+		for (PushTarget target : targets) {
+			try {
+				target.send(aBatch);
+			} catch (IOException e) {
+				err.println(String.format("Unable to push to %s: %s", target, e));
+				target.close();
+			} catch (RuntimeException e) {
+				// a bug in a target must not stop the sender thread
+				err.println(String.format("Unable to push to %s", target));
+				e.printStackTrace(err);
+				target.close();
+			}
+		}
+	}
+
+	/**
+	 * Stop the sender thread, batches still queued are discarded.
+	 */
+	public void stop() {
+		if (sender != null) {
+			sender.interrupt();
+		}
+	}
+
+	/**
+	 * @return the number of dropped batches
+	 */
+	public int getDropped() {
+		return dropped;
+	}
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq.push;
+
+import java.io.IOException;
+
+/**
+ * Receiver of pushed samples
+ */
+public interface PushTarget {
+	/**
+	 * Send a batch of samples
+	 *
+	 * @param aBatch
+	 *            lines in the Graphite plaintext format: <code>path value timestamp</code>
+	 * @throws IOException
+	 */
+	void send(byte[] aBatch) throws IOException;
+
+	/**
+	 * Release the connection
+	 */
+	void close();
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq.push;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+
+/**
+ * Sends batches to StatsD as gauges over UDP. Multiple lines are packed in a single datagram, up to the configured
+ * maximum packet size.
+ */
+public class StatsdTarget implements PushTarget {
+	protected InetSocketAddress address;
+
+	/**
+	 * The maximum size of a datagram, the default of 1432 bytes fits in the usual ethernet MTU
+	 */
+	protected int maxPacketSize;
+
+	protected DatagramSocket socket;
+	protected byte[] packet;
+
+	/**
+	 * @param aHost
+	 * @param aPort
+	 * @param aMaxPacketSize
+	 */
+	public StatsdTarget(String aHost, int aPort, int aMaxPacketSize) {
+		super();
+		address = new InetSocketAddress(aHost, aPort);
+		maxPacketSize = Math.max(aMaxPacketSize, 64);
+		packet = new byte[maxPacketSize];
+	}
+
+	/**
+	 * Every <code>path value timestamp</code> line is sent as <code>path:value|g</code>, the timestamp is dropped as
+	 * StatsD does not support it. Malformed lines are skipped.
+	 */
+	public void send(byte[] aBatch) throws IOException {
+		if (socket == null) {
+			socket = new DatagramSocket();
+		}
+		int size = 0;
+		int start = 0;
+		while (start < aBatch.length) {
+			int end = indexOf(aBatch, (byte) '\n', start, aBatch.length);
+			int pathEnd = indexOf(aBatch, (byte) ' ', start, end);
+			int valueStart = pathEnd + 1;
+			int valueEnd = valueStart < end ? indexOf(aBatch, (byte) ' ', valueStart, end) : end;
+			int pathLength = pathEnd - start;
+			int length = pathLength + 1 + (valueEnd - valueStart) + 2;
+			// lines without a path or value are skipped
+			if (pathLength > 0 && valueEnd > valueStart && length + 1 <= maxPacketSize) {
+				if (size + length + 1 > maxPacketSize) {
+					flush(size);
+					size = 0;
+				}
+				if (size > 0) {
+					packet[size++] = '\n';
+				}
+				System.arraycopy(aBatch, start, packet, size, pathLength);
+				size += pathLength;
+				packet[size++] = ':';
+				System.arraycopy(aBatch, valueStart, packet, size, valueEnd - valueStart);
+				size += valueEnd - valueStart;
+				packet[size++] = '|';
+				packet[size++] = 'g';
+			}
+			start = end + 1;
+		}
+		if (size > 0) {
+			flush(size);
+		}
+	}
+
+	protected void flush(int aSize) throws IOException {
+		socket.send(new DatagramPacket(packet, aSize, address));
+	}
+
+	/**
+	 * @return The position of the byte, or the end when it is not found
+	 */
+	protected static int indexOf(byte[] aData, byte aByte, int aFrom, int aEnd) {
+		for (int i = aFrom; i < aEnd; ++i) {
+			if (aData[i] == aByte) {
+				return i;
+			}
+		}
+		return aEnd;
+	}
+
+	public void close() {
+		if (socket != null) {
+			socket.close();
+		}
+		socket = null;
+	}
+
+	@Override
+	public String toString() {
+		return "statsd " + address;
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010 MP Objects
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.mpobjects.munin.activemq.jmx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the {@link JolokiaTransport} and {@link JsonReader} against a stub Jolokia agent which answers every request
+ * with a fixed response.
+ */
+public class JolokiaTransportTest {
+	protected static final String BROKER = "org.apache.activemq:brokerName=localhost,type=Broker";
+	protected static final String QUEUE_A = "org.apache.activemq:brokerName=localhost,destinationName=a,destinationType=Queue,type=Broker";
+	protected static final String QUEUE_B = "org.apache.activemq:brokerName=localhost,destinationName=b,destinationType=Queue,type=Broker";
+	protected static final String[] ATTRIBUTES = { "QueueSize", "ConsumerCount" };
+
+	protected HttpServer server;
+	protected JolokiaTransport transport;
+
+	/**
+	 * The response the stub sends, written as is so it can be truncated
+	 */
+	protected String response;
+
+	/**
+	 * The request URIs and bodies received by the stub
+	 */
+	protected List<String> requests = new ArrayList<String>();
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/jolokia", new HttpHandler() {
+			public void handle(HttpExchange aExchange) throws IOException {
+				requests.add(aExchange.getRequestURI() + " " + read(aExchange.getRequestBody()));
+				byte[] data = response.getBytes("UTF-8");
+				aExchange.getResponseHeaders().set("Content-Type", "application/json");
+				// chunked, so a truncated response is only noticed by the parser
+				aExchange.sendResponseHeaders(200, 0);
+				OutputStream out = aExchange.getResponseBody();
+				out.write(data);
+				out.close();
+			}
+		});
+		server.start();
+		transport = new JolokiaTransport("http://127.0.0.1:" + server.getAddress().getPort() + "/jolokia", null, null, 5000, 5000);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	@Test
+	public void testBulkRead() throws Exception {
+		response = "[{\"request\":{\"type\":\"read\"},\"status\":200,\"timestamp\":1,\"value\":{" //
+				+ quote(QUEUE_A) + ":{\"QueueSize\":3,\"ConsumerCount\":1}," //
+				+ quote(QUEUE_B) + ":{\"QueueSize\":12345678901234,\"ConsumerCount\":0}}}," //
+				+ "{\"status\":200,\"value\":{\"Queues\":[{\"objectName\":" + quote(QUEUE_A) + "},{\"objectName\":" + quote(QUEUE_B) + "}],\"BrokerVersion\":\"5.15.0\"}}]";
+		ObjectName pattern = new ObjectName("org.apache.activemq:type=Broker,brokerName=localhost,destinationType=Queue,destinationName=*");
+		ObjectName broker = new ObjectName(BROKER);
+
+		Map<ObjectName, Map<String, Object>> result = transport.readAttributes(Arrays.asList(pattern, broker), ATTRIBUTES);
+
+		assertEquals(1, requests.size());
+		String request = requests.get(0);
+		assertTrue(request, request.startsWith("/jolokia/?ignoreErrors=true&canonicalNaming=true "));
+		assertTrue(request, request.contains("{\"type\":\"read\",\"mbean\":" + quote(pattern.getCanonicalName()) + ",\"attribute\":[\"QueueSize\",\"ConsumerCount\"]}"));
+		assertTrue(request, request.contains("\"mbean\":" + quote(BROKER)));
+
+		assertEquals(3, result.size());
+		assertEquals(Long.valueOf(3), result.get(new ObjectName(QUEUE_A)).get("QueueSize"));
+		assertEquals(Long.valueOf(12345678901234L), result.get(new ObjectName(QUEUE_B)).get("QueueSize"));
+		assertArrayEquals(new ObjectName[] { new ObjectName(QUEUE_A), new ObjectName(QUEUE_B) }, (Object[]) result.get(broker).get("Queues"));
+		assertEquals("5.15.0", result.get(broker).get("BrokerVersion"));
+	}
+
+	@Test
+	public void testIgnoredErrors() throws Exception {
+		// with ignoreErrors the agent reports missing MBeans per request, and failed attributes as part of the value
+		response = "[{\"status\":200,\"value\":{\"QueueSize\":3,\"ConsumerCount\":\"ERROR: java.lang.IllegalStateException : stopped\"}}," //
+				+ "{\"error_type\":\"javax.management.InstanceNotFoundException\",\"error\":\"javax.management.InstanceNotFoundException : " + QUEUE_B
+				+ "\",\"status\":404}]";
+
+		Map<ObjectName, Map<String, Object>> result = transport.readAttributes(Arrays.asList(new ObjectName(QUEUE_A), new ObjectName(QUEUE_B)), ATTRIBUTES);
+
+		assertEquals(1, result.size());
+		assertFalse(result.containsKey(new ObjectName(QUEUE_B)));
+		assertEquals(Long.valueOf(3), result.get(new ObjectName(QUEUE_A)).get("QueueSize"));
+		assertEquals("ERROR: java.lang.IllegalStateException : stopped", result.get(new ObjectName(QUEUE_A)).get("ConsumerCount"));
+	}
+
+	@Test
+	public void testErrorEntry() throws Exception {
+		response = "[{\"status\":200,\"value\":{\"QueueSize\":3}},{\"error_type\":\"java.lang.SecurityException\",\"error\":\"denied\",\"status\":403}]";
+		try {
+			transport.readAttributes(Arrays.asList(new ObjectName(QUEUE_A), new ObjectName(QUEUE_B)), ATTRIBUTES);
+			fail("An error entry which is not a missing MBean should fail the read");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("403 denied"));
+		}
+	}
+
+	@Test
+	public void testTruncatedResponse() throws Exception {
+		response = "[{\"status\":200,\"value\":{" + quote(QUEUE_A) + ":{\"QueueSize\":3,\"Consu";
+		ObjectName pattern = new ObjectName("org.apache.activemq:type=Broker,brokerName=localhost,destinationType=Queue,destinationName=*");
+		try {
+			transport.readAttributes(Arrays.asList(pattern), ATTRIBUTES);
+			fail("A truncated response should fail the read");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testMissingResponse() throws Exception {
+		response = "[{\"status\":200,\"value\":{\"QueueSize\":3}}]";
+		try {
+			transport.readAttributes(Arrays.asList(new ObjectName(QUEUE_A), new ObjectName(QUEUE_B)), ATTRIBUTES);
+			fail("Fewer responses than requests should fail the read");
+		} catch (IOException e) {
+			assertEquals("Expected 2 Jolokia responses, received 1", e.getMessage());
+		}
+	}
+
+	protected static String quote(String aStr) {
+		return JolokiaTransport.quote(aStr);
+	}
+
+	protected static String read(InputStream aIn) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		byte[] data = new byte[4096];
+		int len;
+		while ((len = aIn.read(data)) != -1) {
+			buffer.write(data, 0, len);
+		}
+		return buffer.toString("UTF-8");
+	}
+}